@@ -0,0 +1,60 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of {@link Feature#getValue(Long, String)} for each feature of a new feature file, cycling through the
+ * fixture's query rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmark {
+  @Param({
+      "bm25_title", "tfidf_title", "overlap_title", "tf_title", "tf_title_sigir", "tf_title_norm",
+      "tf_title_norm_sigir",
+      "bm25_description", "tfidf_description", "overlap_description", "tf_description", "tf_description_sigir",
+      "tf_description_norm", "tf_description_norm_sigir"})
+  public String feature;
+
+  private Feature target;
+
+  private List<SyntheticFixture.QueryRow> rows;
+
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    SyntheticFixture.prepare();
+    target = FeatureExtraction.baseFeatures().stream()
+        .filter(f -> f.getName().equals(feature))
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Unknown feature " + feature));
+    rows = SyntheticFixture.queries();
+  }
+
+  @Benchmark
+  public float getValue() throws IOException, ParseException {
+    SyntheticFixture.QueryRow row = rows.get(next);
+    next = (next + 1) % rows.size();
+    return target.getValue(row.productID, row.searchTerms);
+  }
+}
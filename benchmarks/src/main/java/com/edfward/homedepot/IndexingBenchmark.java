@@ -0,0 +1,57 @@
+package com.edfward.homedepot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Documents per second of a full {@link Indexing#index(IndexingConfig)} of the fixture, with as many builder and
+ * writer threads as `threads`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexingBenchmark {
+  @Param({"1", "4"})
+  public int threads;
+
+  private Indexing indexing;
+
+  private IndexingConfig config;
+
+  @Setup
+  public void setUp() throws IOException {
+    SyntheticFixture.prepare();
+    indexing = new Indexing();
+    config = SyntheticFixture.indexingConfig().setBuilderThreads(threads).setWriterThreads(threads);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SyntheticFixture.PRODUCTS)
+  public void index() throws IOException {
+    indexing.index(config);
+  }
+
+  // Leave the index as other benchmarks expect it, several threads don't keep document order.
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    SyntheticFixture.buildIndex();
+  }
+}
@@ -0,0 +1,73 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second of {@link NaiveScoring#score} over the fixture's test file, with `threads` workers, row by row or
+ * grouped by search term. The index is opened once per trial, and every invocation starts with an empty search term
+ * cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NaiveScoringBenchmark {
+  @Param({"1", "4"})
+  public int threads;
+
+  @Param({"false", "true"})
+  public boolean groupBySearchTerm;
+
+  private DirectoryReader reader;
+
+  private NaiveScoring scoring;
+
+  private Path output;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws IOException {
+    SyntheticFixture.prepare();
+    reader = IndexAccess.open();
+    scoring = new NaiveScoring(reader, threads, groupBySearchTerm);
+    output = Files.createTempFile("naive-scoring", ".csv");
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    scoring.clearRankings();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SyntheticFixture.QUERIES)
+  public void score() throws IOException, ParseException {
+    scoring.score(SyntheticFixture.testFile().toString(), output.toString());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    reader.close();
+    Files.deleteIfExists(output);
+  }
+}
@@ -0,0 +1,54 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the overlap features counted in the text kept by {@link FieldTexts}, and of their positional variants;
+ * compare with `overlap_*` of {@link FeatureBenchmark}, which reads stored fields through {@link StoredFieldCache}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-D" + FieldTexts.ENABLED_PROPERTY + "=true")
+public class OverlapBenchmark {
+  @Param({"overlap_title", "overlap_description", "overlap_positions_title", "overlap_positions_description"})
+  public String feature;
+
+  private Feature target;
+
+  private List<SyntheticFixture.QueryRow> rows;
+
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    SyntheticFixture.prepare();
+    target = FeatureExtraction.featuresNamed(Collections.singletonList(feature)).get(0);
+    rows = SyntheticFixture.queries();
+  }
+
+  @Benchmark
+  public float getValue() throws IOException, ParseException {
+    SyntheticFixture.QueryRow row = rows.get(next);
+    next = (next + 1) % rows.size();
+    return target.getValue(row.productID, row.searchTerms);
+  }
+}
@@ -0,0 +1,48 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second of all features of a new feature file, computed together like {@link FeatureExtraction} does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowBenchmark {
+  private FeatureEvaluator evaluator;
+
+  private List<SyntheticFixture.QueryRow> rows;
+
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    SyntheticFixture.prepare();
+    evaluator = new FeatureEvaluator(FeatureExtraction.baseFeatures());
+    rows = SyntheticFixture.queries();
+  }
+
+  @Benchmark
+  public float[] evaluate() throws IOException, ParseException {
+    SyntheticFixture.QueryRow row = rows.get(next);
+    next = (next + 1) % rows.size();
+    return evaluator.evaluate(new QueryContext(row.productID, row.searchTerms));
+  }
+}
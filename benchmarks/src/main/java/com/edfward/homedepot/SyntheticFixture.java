@@ -0,0 +1,191 @@
+package com.edfward.homedepot;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A generated data set in the format of the competition's CSV files, and its index.
+ * <p>
+ * Everything is derived from a fixed seed and indexed with one builder and one writer thread, so every machine and
+ * commit benchmarks the same documents in the same order. The fixture is written once under {@value #ROOT_PROPERTY}
+ * (`target/fixture` by default) and reused by later runs.
+ */
+final class SyntheticFixture {
+  static final String ROOT_PROPERTY = "homedepot.fixture";
+
+  // Bump when the generated data changes, so stale fixtures aren't reused.
+  private static final int VERSION = 1;
+
+  private static final long SEED = 20160301L;
+
+  static final int PRODUCTS = 5_000;
+
+  static final int QUERIES = 2_000;
+
+  private static final int VOCABULARY = 3_000;
+
+  private static final long FIRST_PRODUCT_ID = 100_001L;
+
+  private static final Path ROOT =
+      Paths.get(System.getProperty(ROOT_PROPERTY, "target/fixture"), "v" + VERSION);
+
+  private static final Path DATA_PATH = ROOT.resolve("data");
+
+  private static final Path INDEX_PATH = ROOT.resolve("index");
+
+  private SyntheticFixture() {
+  }
+
+  /**
+   * Point {@link Indexing} at the fixture, generating the data and index first if needed. Must be called before
+   * anything reads {@link Indexing#INDEX_PATH}, including the static state of {@link FeatureBase}.
+   */
+  static synchronized void prepare() throws IOException {
+    System.setProperty("homedepot.data", DATA_PATH.toString());
+    System.setProperty("homedepot.index", INDEX_PATH.toString());
+    if (!Indexing.INDEX_PATH.equals(INDEX_PATH)) {
+      throw new IllegalStateException("Index path was read before the fixture was prepared: " + Indexing.INDEX_PATH);
+    }
+
+    if (!Files.exists(DATA_PATH.resolve("test.csv"))) {
+      generate();
+    }
+    try (Directory directory = FSDirectory.open(INDEX_PATH)) {
+      if (!DirectoryReader.indexExists(directory)) {
+        buildIndex();
+      }
+    }
+  }
+
+  /** Index settings of the fixture, single-threaded so documents always get the same IDs. */
+  static IndexingConfig indexingConfig() {
+    return new IndexingConfig().setBuilderThreads(1).setWriterThreads(1);
+  }
+
+  static void buildIndex() throws IOException {
+    new Indexing().index(indexingConfig());
+  }
+
+  /** Query rows of `train.csv`. */
+  static List<QueryRow> queries() throws IOException {
+    List<QueryRow> rows = new ArrayList<>(QUERIES);
+    try (CSVParser csvParser = CSVParser.parse(
+        DATA_PATH.resolve("train.csv").toFile(), StandardCharsets.UTF_8, CSVFormat.DEFAULT.withHeader())) {
+      for (CSVRecord record : csvParser) {
+        rows.add(new QueryRow(
+            Long.parseLong(record.get(Constant.CSV_PRODUCT_ID)), record.get(Constant.CSV_SEARCH_TERM)));
+      }
+    }
+    return rows;
+  }
+
+  static Path testFile() {
+    return DATA_PATH.resolve("test.csv");
+  }
+
+  private static void generate() throws IOException {
+    Files.createDirectories(DATA_PATH);
+    Random random = new Random(SEED);
+    String[] words = new String[VOCABULARY];
+    for (int i = 0; i < words.length; ++i) {
+      words[i] = word(random);
+    }
+
+    String[] titles = new String[PRODUCTS];
+    try (CSVPrinter descriptions = printer("product_descriptions.csv")) {
+      descriptions.printRecord(Constant.CSV_PRODUCT_ID, Constant.CSV_DESCRIPTION);
+      for (int i = 0; i < PRODUCTS; ++i) {
+        titles[i] = text(random, words, 4 + random.nextInt(8));
+        descriptions.printRecord(FIRST_PRODUCT_ID + i, text(random, words, 30 + random.nextInt(150)));
+      }
+    }
+
+    try (
+        CSVPrinter train = printer("train.csv");
+        CSVPrinter test = printer("test.csv")
+    ) {
+      train.printRecord("id", Constant.CSV_PRODUCT_ID, Constant.CSV_TITLE, Constant.CSV_SEARCH_TERM,
+          Constant.CSV_RELEVANCE);
+      test.printRecord("id", Constant.CSV_PRODUCT_ID, Constant.CSV_TITLE, Constant.CSV_SEARCH_TERM);
+      for (int id = 1; id <= 2 * QUERIES; ++id) {
+        int product = random.nextInt(PRODUCTS);
+        String searchTerms = searchTerms(random, words, titles[product]);
+        if (id % 2 == 1) {
+          train.printRecord(id, FIRST_PRODUCT_ID + product, titles[product], searchTerms,
+              1 + random.nextInt(7) / 3.0);
+        } else {
+          test.printRecord(id, FIRST_PRODUCT_ID + product, titles[product], searchTerms);
+        }
+      }
+    }
+  }
+
+  private static CSVPrinter printer(String fileName) throws IOException {
+    return new CSVPrinter(new FileWriter(new File(DATA_PATH.toFile(), fileName)), CSVFormat.DEFAULT);
+  }
+
+  private static String word(Random random) {
+    String consonants = "bcdfghklmnprstvw";
+    String vowels = "aeiou";
+    StringBuilder word = new StringBuilder();
+    for (int syllables = 1 + random.nextInt(3); syllables > 0; --syllables) {
+      word.append(consonants.charAt(random.nextInt(consonants.length())));
+      word.append(vowels.charAt(random.nextInt(vowels.length())));
+    }
+    return word.toString();
+  }
+
+  // Words skewed towards the start of the vocabulary, like natural text.
+  private static String text(Random random, String[] words, int length) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; ++i) {
+      if (i > 0) {
+        text.append(' ');
+      }
+      text.append(words[(int) (words.length * Math.pow(random.nextDouble(), 3))]);
+    }
+    return text.toString();
+  }
+
+  // Mostly words of the product's title, so a fair share of queries match their product.
+  private static String searchTerms(Random random, String[] words, String title) {
+    String[] titleWords = title.split(" ");
+    StringBuilder terms = new StringBuilder();
+    for (int i = 1 + random.nextInt(4); i > 0; --i) {
+      if (terms.length() > 0) {
+        terms.append(' ');
+      }
+      terms.append(random.nextInt(4) > 0
+          ? titleWords[random.nextInt(titleWords.length)]
+          : words[random.nextInt(words.length)]);
+    }
+    return terms.toString();
+  }
+
+  static final class QueryRow {
+    final long productID;
+
+    final String searchTerms;
+
+    QueryRow(long productID, String searchTerms) {
+      this.productID = productID;
+      this.searchTerms = searchTerms;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.edfward.homedepot;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Column-major feature values replaced by the number of their histogram bin, one byte per value.
+ * <p>
+ * Bin edges are quantiles of each feature, so bins hold about as many rows each, except that equal values always
+ * share a bin. Bin `b` holds the values at most `threshold(f, b)` and above the edge before it; the last bin holds
+ * everything above the last edge. Quantiles are of the values that are numbers: NaN, which compares false to any edge,
+ * gets a bin of its own after all others, and goes right of every split, as in {@link RegressionTree}.
+ */
+final class BinnedColumns {
+  static final int MAX_BINS = 256;
+
+  private final int rows;
+
+  // Per feature, the bin of each row.
+  private final byte[][] bins;
+
+  // Per feature, the upper edge of every bin but the last, ascending.
+  private final float[][] edges;
+
+  // Per feature, whether some rows are NaN, in bin `edges[f].length + 1`.
+  private final boolean[] hasNaN;
+
+  private BinnedColumns(int rows, byte[][] bins, float[][] edges, boolean[] hasNaN) {
+    this.rows = rows;
+    this.bins = bins;
+    this.edges = edges;
+    this.hasNaN = hasNaN;
+  }
+
+  /** Bin `columns`, one array of row values per feature, on `pool`. */
+  static BinnedColumns bin(float[][] columns, int maxBins, ForkJoinPool pool) {
+    int rows = columns.length == 0 ? 0 : columns[0].length;
+    byte[][] bins = new byte[columns.length][];
+    float[][] edges = new float[columns.length][];
+    boolean[] hasNaN = new boolean[columns.length];
+    try {
+      pool.submit(() -> IntStream.range(0, columns.length).parallel().forEach(f -> {
+        for (int row = 0; row < rows && !hasNaN[f]; ++row) {
+          hasNaN[f] = Float.isNaN(columns[f][row]);
+        }
+        edges[f] = edges(columns[f], hasNaN[f] ? maxBins - 1 : maxBins);
+        bins[f] = new byte[rows];
+        for (int row = 0; row < rows; ++row) {
+          bins[f][row] = (byte) binOf(edges[f], columns[f][row]);
+        }
+      })).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while binning features", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return new BinnedColumns(rows, bins, edges, hasNaN);
+  }
+
+  // Distinct quantiles of the values but NaN, without the maximum, so the last bin isn't empty.
+  private static float[] edges(float[] values, int maxBins) {
+    float[] sorted = values.clone();
+    Arrays.sort(sorted);
+    // NaN sorts last.
+    int length = sorted.length;
+    while (length > 0 && Float.isNaN(sorted[length - 1])) {
+      --length;
+    }
+    if (length == 0) {
+      return new float[0];
+    }
+    float[] edges = new float[maxBins - 1];
+    int count = 0;
+    for (int b = 1; b < maxBins; ++b) {
+      float edge = sorted[(int) ((long) b * length / maxBins)];
+      if (edge < sorted[length - 1] && (count == 0 || edge > edges[count - 1])) {
+        edges[count++] = edge;
+      }
+    }
+    return Arrays.copyOf(edges, count);
+  }
+
+  // Index of the first edge at or above the value, or the number of edges; one more for NaN.
+  private static int binOf(float[] edges, float value) {
+    if (Float.isNaN(value)) {
+      return edges.length + 1;
+    }
+    int i = Arrays.binarySearch(edges, value);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  int rows() {
+    return rows;
+  }
+
+  int features() {
+    return bins.length;
+  }
+
+  int bin(int feature, int row) {
+    return bins[feature][row] & 0xFF;
+  }
+
+  int binCount(int feature) {
+    return edges[feature].length + (hasNaN[feature] ? 2 : 1);
+  }
+
+  /** Largest value of bin `bin`; values at most this go left of a split after that bin. */
+  float threshold(int feature, int bin) {
+    // After the last bin of numbers, only NaN goes right.
+    return bin < edges[feature].length ? edges[feature][bin] : Float.POSITIVE_INFINITY;
+  }
+}
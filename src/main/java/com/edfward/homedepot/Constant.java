@@ -8,6 +8,8 @@ public class Constant {
 
   public static final String FIELD_DESCRIPTION = "description";
 
+  public static final String FIELD_ATTRIBUTES = "attributes";
+
   public static final String CSV_PRODUCT_ID = "product_uid";
 
   public static final String CSV_SEARCH_TERM = "search_term";
@@ -18,4 +20,11 @@ public class Constant {
 
   public static final String CSV_DESCRIPTION = "product_description";
 
+  public static final String CSV_ATTRIBUTE_NAME = "name";
+
+  public static final String CSV_ATTRIBUTE_VALUE = "value";
+
+  // Marks a product for removal in delta files.
+  public static final String CSV_DELETED = "deleted";
+
 }
@@ -0,0 +1,153 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps product IDs to internal Lucene document IDs of one {@link IndexReader}.
+ * <p>
+ * Built once per reader with open addressing over primitive arrays, so a lookup is a couple of array reads
+ * instead of a {@code TermQuery} on {@link Constant#FIELD_ID}. Must be rebuilt whenever the reader changes.
+ */
+final class DocIDResolver {
+  static final int NOT_FOUND = -1;
+
+  private final long[] keys;
+
+  // Internal document IDs, NOT_FOUND for empty slots.
+  private final int[] docIDs;
+
+  private final int mask;
+
+  private int size;
+
+  private DocIDResolver(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+    keys = new long[capacity];
+    docIDs = new int[capacity];
+    mask = capacity - 1;
+    Arrays.fill(docIDs, NOT_FOUND);
+  }
+
+  // Read IDs from numeric doc values where available, otherwise walk the terms of the ID field.
+  static DocIDResolver build(IndexReader reader) throws IOException {
+    DocIDResolver resolver = new DocIDResolver(reader.numDocs());
+    for (LeafReaderContext leaf : reader.leaves()) {
+      LeafReader leafReader = leaf.reader();
+      Bits liveDocs = leafReader.getLiveDocs();
+      NumericDocValues ids = leafReader.getNumericDocValues(Constant.FIELD_ID);
+      if (ids != null) {
+        Bits docsWithID = leafReader.getDocsWithField(Constant.FIELD_ID);
+        for (int doc = 0; doc < leafReader.maxDoc(); ++doc) {
+          if ((liveDocs == null || liveDocs.get(doc)) && docsWithID.get(doc)) {
+            resolver.put(ids.get(doc), leaf.docBase + doc);
+          }
+        }
+        continue;
+      }
+
+      // Index built before the ID doc values were added.
+      Terms terms = leafReader.terms(Constant.FIELD_ID);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      PostingsEnum postingsEnum = null;
+      BytesRef idBytes;
+      while ((idBytes = termsEnum.next()) != null) {
+        long productID = Long.parseLong(idBytes.utf8ToString());
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+        int doc;
+        while ((doc = postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          if (liveDocs == null || liveDocs.get(doc)) {
+            resolver.put(productID, leaf.docBase + doc);
+          }
+        }
+      }
+    }
+    return resolver;
+  }
+
+  /**
+   * Internal document ID of one product, or {@link #NOT_FOUND}, seeking its term in each segment; for a few lookups
+   * where building the whole table would cost more.
+   */
+  static int lookup(IndexReader reader, long productID) throws IOException {
+    BytesRef idBytes = new BytesRef(String.valueOf(productID));
+    PostingsEnum postingsEnum = null;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      LeafReader leafReader = leaf.reader();
+      Terms terms = leafReader.terms(Constant.FIELD_ID);
+      if (terms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = terms.iterator();
+      if (!termsEnum.seekExact(idBytes)) {
+        continue;
+      }
+      Bits liveDocs = leafReader.getLiveDocs();
+      postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+      int doc;
+      while ((doc = postingsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        if (liveDocs == null || liveDocs.get(doc)) {
+          return leaf.docBase + doc;
+        }
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private void put(long productID, int docID) {
+    int slot = hash(productID) & mask;
+    while (docIDs[slot] != NOT_FOUND && keys[slot] != productID) {
+      slot = (slot + 1) & mask;
+    }
+    if (docIDs[slot] == NOT_FOUND) {
+      ++size;
+    }
+    keys[slot] = productID;
+    docIDs[slot] = docID;
+  }
+
+  /** Returns the internal document ID, or {@link #NOT_FOUND}. */
+  int get(long productID) {
+    int slot = hash(productID) & mask;
+    int docID;
+    while ((docID = docIDs[slot]) != NOT_FOUND) {
+      if (keys[slot] == productID) {
+        return docID;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return NOT_FOUND;
+  }
+
+  /** Like {@link #get(long)}, but a missing product is an error. */
+  int getExisting(long productID) {
+    int docID = get(productID);
+    if (docID == NOT_FOUND) {
+      throw new AssertionError("Couldn't find document with ID " + productID);
+    }
+    return docID;
+  }
+
+  int size() {
+    return size;
+  }
+}
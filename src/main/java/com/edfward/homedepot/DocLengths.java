@@ -0,0 +1,60 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of tokens of analyzed fields, per internal document ID of one {@link IndexReader}.
+ * <p>
+ * Loaded once from the length doc values written by {@link Indexing}. Indexes built before those existed fall back
+ * to the encoded norm, which is what the features used to read.
+ */
+final class DocLengths {
+  private final Map<String, int[]> lengths = new HashMap<>();
+
+  private DocLengths() {
+  }
+
+  /** Name of the doc values field holding the token count of `field`. */
+  static String lengthField(String field) {
+    return field + "_length";
+  }
+
+  static DocLengths load(IndexReader reader, String... fields) throws IOException {
+    DocLengths docLengths = new DocLengths();
+    for (String field : fields) {
+      int[] fieldLengths = new int[reader.maxDoc()];
+      for (LeafReaderContext leaf : reader.leaves()) {
+        LeafReader leafReader = leaf.reader();
+        NumericDocValues values = leafReader.getNumericDocValues(lengthField(field));
+        if (values == null) {
+          System.err.println("No token counts for '" + field + "' in segment " + leaf.ord + ", using norms instead. "
+              + "Re-index to get exact document lengths.");
+          values = leafReader.getNormValues(field);
+        }
+        if (values == null) {
+          continue;
+        }
+        for (int doc = 0; doc < leafReader.maxDoc(); ++doc) {
+          fieldLengths[leaf.docBase + doc] = (int) values.get(doc);
+        }
+      }
+      docLengths.lengths.put(field, fieldLengths);
+    }
+    return docLengths;
+  }
+
+  int get(String field, int docID) {
+    int[] fieldLengths = lengths.get(field);
+    if (fieldLengths == null) {
+      throw new IllegalArgumentException("Document lengths of field '" + field + "' are not loaded");
+    }
+    return fieldLengths[docID];
+  }
+}
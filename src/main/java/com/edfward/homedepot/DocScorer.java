@@ -0,0 +1,70 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores a query against a single known document.
+ * <p>
+ * Instead of running a search restricted to the document, the query's {@link Weight} is created once and its
+ * {@link Scorer} on the document's segment is advanced straight to it. No collector or priority queue is involved.
+ */
+final class DocScorer {
+  private static final LongAdder SCORER_LOOKUPS = Metrics.counter("lookups.scorer");
+
+  private final List<LeafReaderContext> leaves;
+
+  private final Weight weight;
+
+  /** Weight `query` with the searcher's similarity. */
+  DocScorer(IndexSearcher searcher, Query query) throws IOException {
+    this.leaves = searcher.getIndexReader().leaves();
+    this.weight = searcher.createNormalizedWeight(query, true);
+  }
+
+  /** Score of the document with the given internal ID, 0 if it doesn't match the query. */
+  float score(int docID) throws IOException {
+    return score(new int[]{docID})[0];
+  }
+
+  /**
+   * Scores of several documents, 0 for those not matching the query.
+   *
+   * @param docIDs internal document IDs in ascending order, so each segment's scorer is visited in one forward pass.
+   */
+  float[] score(int[] docIDs) throws IOException {
+    float[] scores = new float[docIDs.length];
+    LeafReaderContext leaf = null;
+    Scorer scorer = null;
+    for (int i = 0; i < docIDs.length; ++i) {
+      int docID = docIDs[i];
+      if (leaf == null || docID >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+        scorer = weight.scorer(leaf);
+        if (Metrics.ENABLED) {
+          SCORER_LOOKUPS.increment();
+        }
+      }
+      if (scorer == null) {
+        continue;
+      }
+      int leafDocID = docID - leaf.docBase;
+      int current = scorer.docID();
+      if (current < leafDocID) {
+        current = scorer.advance(leafDocID);
+      }
+      if (current == leafDocID) {
+        scores[i] = scorer.score();
+      }
+    }
+    return scores;
+  }
+}
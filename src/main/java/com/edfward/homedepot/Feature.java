@@ -5,16 +5,30 @@ import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
 
 
 interface Feature {
   String getName();
 
   float getValue(Long productID, String searchTerms) throws IOException, ParseException;
+
+  // Same as above, but reuses the analysis of the search terms already done for the row.
+  default float getValue(QueryContext context) throws IOException, ParseException {
+    return getValue(context.getProductID(), context.getSearchTerms());
+  }
+
+  // Values for rows sharing the same search terms (see `QueryContext.withProduct`), sorted by document ID.
+  default float[] getValues(QueryContext[] rows) throws IOException, ParseException {
+    float[] values = new float[rows.length];
+    for (int i = 0; i < rows.length; ++i) {
+      values[i] = getValue(rows[i]);
+    }
+    return values;
+  }
 }
 
 
@@ -23,18 +37,75 @@ abstract class FeatureBase {
 
   protected static Analyzer analyzer;
 
+  // Product ID to internal document ID of the current reader.
+  protected static DocIDResolver idResolver;
+
+  // Token counts of the analyzed fields.
+  protected static DocLengths docLengths;
+
+  // Lower-cased text of the fields, null unless `FieldTexts.ENABLED`.
+  protected static FieldTexts fieldTexts;
+
+  // Stored values of the fields, by document.
+  protected static StoredFieldCache storedFieldCache;
+
+  // df and total term frequency of query terms.
+  protected static TermStatsCache termStatsCache;
+
+  // Searchers over the same reader, one per similarity, as `IndexSearcher.setSimilarity` can't be shared by threads.
+  protected static Map<SearchFeature.SearchSimilarity, IndexSearcher> similaritySearchers;
+
   static {
-    Directory directory;
     try {
-      directory = FSDirectory.open(Indexing.INDEX_PATH);
-      DirectoryReader indexReader = DirectoryReader.open(directory);
-      searcher = new IndexSearcher(indexReader);
+      // Directory mode and warm-up are set by system properties, see `IndexAccess`.
+      DirectoryReader indexReader = IndexAccess.open();
+      load(indexReader);
       analyzer = new EnglishAnalyzer();
     } catch (IOException e) {
       e.printStackTrace();
       throw new AssertionError("Failed to read index.");
     }
   }
+
+  // Everything derived from the reader is (re)built here.
+  private static void load(DirectoryReader indexReader) throws IOException {
+    idResolver = DocIDResolver.build(indexReader);
+    docLengths = DocLengths.load(indexReader, Constant.FIELD_TITLE, Constant.FIELD_DESCRIPTION);
+    fieldTexts = FieldTexts.ENABLED
+        ? FieldTexts.load(indexReader, Constant.FIELD_TITLE, Constant.FIELD_DESCRIPTION)
+        : null;
+    termStatsCache = new TermStatsCache(indexReader);
+    storedFieldCache = new StoredFieldCache(indexReader);
+    searcher = new IndexSearcher(indexReader);
+    Map<SearchFeature.SearchSimilarity, IndexSearcher> searchers = new EnumMap<>(SearchFeature.SearchSimilarity.class);
+    for (SearchFeature.SearchSimilarity sim : SearchFeature.SearchSimilarity.values()) {
+      IndexSearcher similaritySearcher = new IndexSearcher(indexReader);
+      similaritySearcher.setSimilarity(sim.create());
+      searchers.put(sim, similaritySearcher);
+    }
+    similaritySearchers = searchers;
+  }
+
+  /**
+   * Switch to the latest commit of the index if it changed since it was opened.
+   * Must not be called while features are being computed.
+   *
+   * @return whether a new reader was opened.
+   */
+  static synchronized boolean reopen() throws IOException {
+    DirectoryReader oldReader = (DirectoryReader) searcher.getIndexReader();
+    DirectoryReader newReader = DirectoryReader.openIfChanged(oldReader);
+    if (newReader == null) {
+      return false;
+    }
+    load(newReader);
+    oldReader.close();
+    return true;
+  }
+
+  protected static int getDocID(Long productID) {
+    return idResolver.getExisting(productID);
+  }
 }
 
 abstract class FieldFeatureBase extends FeatureBase {
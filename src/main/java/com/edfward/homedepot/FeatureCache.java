@@ -0,0 +1,261 @@
+package com.edfward.homedepot;
+
+import com.google.common.io.CountingInputStream;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feature values of earlier runs, kept on disk by (feature name, index version, product ID, search terms).
+ * <p>
+ * Search terms are compared exactly, like rows are grouped in {@link FeatureExtraction}, as their casing can change
+ * the parsed query. The index version is the ID of the index commit the reader was opened on, so every rebuild or
+ * update of the index starts an empty cache; caches of other versions are deleted when one is opened. Each feature
+ * has its own append-only file of (product ID, search terms, value) records under the version's directory.
+ * <p>
+ * Thread-safe. Rows are resolved to a slot once, through {@link #row(Long, String)}, and each feature has its own
+ * lock, so workers only contend when they read or write the same feature. New values reach the disk on
+ * {@link #flush()} or {@link #close()}.
+ */
+final class FeatureCache implements Closeable {
+  private static final String COLUMN_SUFFIX = ".bin";
+
+  private final Path directory;
+
+  // Row key to slot in the value arrays of all features.
+  private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+
+  private final AtomicInteger nextSlot = new AtomicInteger();
+
+  private final Map<String, Column> columns = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private FeatureCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Cache under `directory` for the index commit of `reader`. */
+  static FeatureCache open(Path directory, DirectoryReader reader) throws IOException {
+    String version = indexVersion(reader);
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> versions = Files.newDirectoryStream(directory)) {
+      for (Path other : versions) {
+        if (!other.getFileName().toString().equals(version)) {
+          System.err.println("Deleting feature cache of another index version: " + other);
+          deleteRecursively(other);
+        }
+      }
+    }
+    Path versionDirectory = directory.resolve(version);
+    Files.createDirectories(versionDirectory);
+    return new FeatureCache(versionDirectory);
+  }
+
+  /** Cache under `directory` for the index the features currently read. */
+  static FeatureCache open(Path directory) throws IOException {
+    return open(directory, (DirectoryReader) FeatureBase.searcher.getIndexReader());
+  }
+
+  private static String indexVersion(DirectoryReader reader) throws IOException {
+    IndexCommit commit = reader.getIndexCommit();
+    SegmentInfos segmentInfos = SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName());
+    return StringHelper.idToString(segmentInfos.getId());
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    if (Files.isDirectory(path)) {
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(path)) {
+        for (Path child : children) {
+          deleteRecursively(child);
+        }
+      }
+    }
+    Files.delete(path);
+  }
+
+  private static String key(Long productID, String searchTerms) {
+    return productID + "\t" + searchTerms;
+  }
+
+  /** The row of `productID` and `searchTerms`, to look up and store all its features with. */
+  Row row(Long productID, String searchTerms) {
+    return new Row(slot(key(productID, searchTerms)), productID, searchTerms);
+  }
+
+  /** Cached value, or null if `feature` wasn't computed for the row yet. */
+  Float get(String feature, Row row) throws IOException {
+    Float value = column(feature).get(row.slot);
+    if (value == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return value;
+  }
+
+  void put(String feature, Row row, float value) throws IOException {
+    column(feature).put(row, value);
+  }
+
+  private int slot(String key) {
+    return slots.computeIfAbsent(key, k -> nextSlot.getAndIncrement());
+  }
+
+  private Path columnPath(String feature) {
+    return directory.resolve(feature + COLUMN_SUFFIX);
+  }
+
+  // Values of `feature`, read from its file on first use.
+  private Column column(String feature) throws IOException {
+    Column column = columns.get(feature);
+    if (column != null) {
+      return column;
+    }
+    synchronized (columns) {
+      column = columns.get(feature);
+      if (column == null) {
+        column = load(feature);
+        columns.put(feature, column);
+      }
+      return column;
+    }
+  }
+
+  private Column load(String feature) throws IOException {
+    Column column = new Column(columnPath(feature));
+    Path path = columnPath(feature);
+    if (Files.exists(path)) {
+      long validLength = 0;
+      try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)));
+           DataInputStream in = new DataInputStream(counter)) {
+        while (true) {
+          long productID = in.readLong();
+          String searchTerms = in.readUTF();
+          float value = in.readFloat();
+          column.set(slot(key(productID, searchTerms)), value);
+          validLength = counter.getCount();
+        }
+      } catch (EOFException e) {
+        // End of file, or a record cut short by an interrupted run, which is dropped before appending.
+      }
+      if (validLength < Files.size(path)) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+          channel.truncate(validLength);
+        }
+      }
+    }
+    return column;
+  }
+
+  void flush() throws IOException {
+    for (Column column : columns.values()) {
+      column.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Column column : columns.values()) {
+      column.close();
+    }
+  }
+
+  String stats() {
+    return "FeatureCache{hits=" + hits.sum() + ", misses=" + misses.sum() + "}";
+  }
+
+  /** A row resolved to its slot, see {@link #row(Long, String)}. */
+  static final class Row {
+    final int slot;
+
+    final Long productID;
+
+    final String searchTerms;
+
+    private Row(int slot, Long productID, String searchTerms) {
+      this.slot = slot;
+      this.productID = productID;
+      this.searchTerms = searchTerms;
+    }
+  }
+
+  // Values of one feature by slot; guarded by its own monitor.
+  private static final class Column {
+    private final Path path;
+
+    float[] values = new float[1024];
+
+    final BitSet present = new BitSet();
+
+    DataOutputStream out;
+
+    Column(Path path) {
+      this.path = path;
+    }
+
+    synchronized Float get(int slot) {
+      return present.get(slot) ? values[slot] : null;
+    }
+
+    synchronized void put(Row row, float value) throws IOException {
+      if (set(row.slot, value)) {
+        if (out == null) {
+          out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        }
+        out.writeLong(row.productID);
+        out.writeUTF(row.searchTerms);
+        out.writeFloat(value);
+      }
+    }
+
+    synchronized void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    synchronized void close() throws IOException {
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    }
+
+    // Whether the slot didn't have a value yet.
+    boolean set(int slot, float value) {
+      if (slot >= values.length) {
+        values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+      }
+      values[slot] = value;
+      if (present.get(slot)) {
+        return false;
+      }
+      present.set(slot);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a fixed list of features for one row at a time.
+ * <p>
+ * {@link TermFeature}s of the same field share one set of {@link TermStats} per query term, so tf, document length,
+ * df and total term frequency are read from the index once per (document, term, field) however many TF/IDF variants
+ * are requested. Other features are computed on their own.
+ * <p>
+ * With a {@link FeatureCache}, only features missing from the cache are computed, and their values are added to it.
+ * Rows evaluated together share the computation, so a feature missing for any of them is computed for all of them.
+ * <p>
+ * With {@link Metrics} enabled, the time of each feature is recorded per row as `feature.<name>`. Reading the shared
+ * term statistics of a batch of rows is recorded as `term_stats.<field>`; for single rows statistics are read
+ * lazily, by the first term feature of the field.
+ */
+class FeatureEvaluator {
+  private final List<Feature> features;
+
+  // Null when values aren't cached.
+  private final FeatureCache cache;
+
+  // Positions in `features` of the term features, grouped by field.
+  private final Map<String, List<Integer>> termFeaturePositions = new LinkedHashMap<>();
+
+  // Per feature, only used with metrics enabled.
+  private final Metrics.Histogram[] latencies;
+
+  FeatureEvaluator(List<Feature> features) {
+    this(features, null);
+  }
+
+  FeatureEvaluator(List<Feature> features, FeatureCache cache) {
+    this.features = new ArrayList<>(features);
+    this.cache = cache;
+    this.latencies = new Metrics.Histogram[features.size()];
+    for (int i = 0; i < features.size(); ++i) {
+      Feature feature = features.get(i);
+      latencies[i] = Metrics.histogram("feature." + feature.getName());
+      if (feature instanceof TermFeature) {
+        String field = ((TermFeature) feature).getField();
+        termFeaturePositions.computeIfAbsent(field, f -> new ArrayList<>()).add(i);
+      }
+    }
+  }
+
+  static List<TermStats> gatherStats(QueryContext context, String field) {
+    List<Term> terms = context.getTerms(field);
+    List<TermStats> stats = new ArrayList<>(terms.size());
+    for (Term term : terms) {
+      stats.add(new TermStats(context.getDocID(), term));
+    }
+    return stats;
+  }
+
+  List<Feature> getFeatures() {
+    return features;
+  }
+
+  /** Feature values for the row, in the order of {@link #getFeatures()}. */
+  float[] evaluate(QueryContext context) throws IOException, ParseException {
+    float[] values = new float[features.size()];
+    boolean[] missing = new boolean[features.size()];
+    FeatureCache.Row cacheRow = cacheRow(context);
+    for (int i = 0; i < features.size(); ++i) {
+      missing[i] = !lookUp(i, cacheRow, values, i);
+    }
+
+    for (Map.Entry<String, List<Integer>> entry : termFeaturePositions.entrySet()) {
+      if (entry.getValue().stream().noneMatch(i -> missing[i])) {
+        continue;
+      }
+      List<TermStats> stats = gatherStats(context, entry.getKey());
+      for (int i : entry.getValue()) {
+        if (missing[i]) {
+          long start = Metrics.ENABLED ? System.nanoTime() : 0;
+          values[i] = ((TermFeature) features.get(i)).sum(stats);
+          if (Metrics.ENABLED) {
+            latencies[i].record(System.nanoTime() - start);
+          }
+        }
+      }
+    }
+    for (int i = 0; i < features.size(); ++i) {
+      Feature feature = features.get(i);
+      if (missing[i] && !(feature instanceof TermFeature)) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        values[i] = feature.getValue(context);
+        if (Metrics.ENABLED) {
+          latencies[i].record(System.nanoTime() - start);
+        }
+      }
+    }
+
+    for (int i = 0; i < features.size(); ++i) {
+      if (missing[i]) {
+        store(i, cacheRow, values[i]);
+      }
+    }
+    return values;
+  }
+
+  // The row in the cache, resolved once for all features; null without a cache.
+  private FeatureCache.Row cacheRow(QueryContext context) {
+    return cache == null ? null : cache.row(context.getProductID(), context.getSearchTerms());
+  }
+
+  // Copy the cached value of feature `i` for the row to `values[position]`, if there is one.
+  private boolean lookUp(int i, FeatureCache.Row row, float[] values, int position) throws IOException {
+    if (cache == null) {
+      return false;
+    }
+    Float value = cache.get(features.get(i).getName(), row);
+    if (value == null) {
+      return false;
+    }
+    values[position] = value;
+    return true;
+  }
+
+  private void store(int i, FeatureCache.Row row, float value) throws IOException {
+    if (cache != null) {
+      cache.put(features.get(i).getName(), row, value);
+    }
+  }
+
+  /**
+   * Feature values for rows sharing the same search terms (see {@link QueryContext#withProduct(Long)}), in the order
+   * of `rows`. Documents are visited in index order, so postings and scorers are read in one forward pass per query.
+   */
+  float[][] evaluate(QueryContext[] rows) throws IOException, ParseException {
+    // Positions in `rows` by ascending document ID.
+    Integer[] order = new Integer[rows.length];
+    for (int r = 0; r < rows.length; ++r) {
+      order[r] = r;
+    }
+    Arrays.sort(order, Comparator.comparingInt(r -> rows[r].getDocID()));
+    QueryContext[] sortedRows = new QueryContext[rows.length];
+    FeatureCache.Row[] cacheRows = new FeatureCache.Row[rows.length];
+    int[] docIDs = new int[rows.length];
+    for (int r = 0; r < rows.length; ++r) {
+      sortedRows[r] = rows[order[r]];
+      cacheRows[r] = cacheRow(sortedRows[r]);
+      docIDs[r] = sortedRows[r].getDocID();
+    }
+
+    // Values of the sorted rows, transposed afterwards.
+    float[][] sortedValues = new float[features.size()][];
+    boolean[] missing = new boolean[features.size()];
+    for (int i = 0; i < features.size(); ++i) {
+      sortedValues[i] = new float[rows.length];
+      for (int r = 0; r < rows.length && !missing[i]; ++r) {
+        missing[i] = !lookUp(i, cacheRows[r], sortedValues[i], r);
+      }
+    }
+
+    for (Map.Entry<String, List<Integer>> entry : termFeaturePositions.entrySet()) {
+      if (entry.getValue().stream().noneMatch(i -> missing[i])) {
+        continue;
+      }
+      long statsStart = Metrics.ENABLED ? System.nanoTime() : 0;
+      List<Term> terms = rows.length == 0 ? Collections.emptyList() : rows[0].getTerms(entry.getKey());
+      List<List<TermStats>> rowStats = new ArrayList<>(rows.length);
+      for (int r = 0; r < rows.length; ++r) {
+        rowStats.add(new ArrayList<>(terms.size()));
+      }
+      for (Term term : terms) {
+        TermStats[] termStats = TermStats.forDocs(term, docIDs);
+        for (int r = 0; r < rows.length; ++r) {
+          rowStats.get(r).add(termStats[r]);
+        }
+      }
+      if (Metrics.ENABLED) {
+        Metrics.histogram("term_stats." + entry.getKey()).record(System.nanoTime() - statsStart, rows.length);
+      }
+      for (int i : entry.getValue()) {
+        if (!missing[i]) {
+          continue;
+        }
+        TermFeature feature = (TermFeature) features.get(i);
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        for (int r = 0; r < rows.length; ++r) {
+          sortedValues[i][r] = feature.sum(rowStats.get(r));
+        }
+        if (Metrics.ENABLED) {
+          latencies[i].record(System.nanoTime() - start, rows.length);
+        }
+      }
+    }
+    for (int i = 0; i < features.size(); ++i) {
+      Feature feature = features.get(i);
+      if (missing[i] && !(feature instanceof TermFeature)) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        sortedValues[i] = feature.getValues(sortedRows);
+        if (Metrics.ENABLED) {
+          latencies[i].record(System.nanoTime() - start, rows.length);
+        }
+      }
+    }
+
+    for (int i = 0; i < features.size(); ++i) {
+      for (int r = 0; r < rows.length && missing[i]; ++r) {
+        store(i, cacheRows[r], sortedValues[i][r]);
+      }
+    }
+
+    float[][] values = new float[rows.length][features.size()];
+    for (int r = 0; r < rows.length; ++r) {
+      for (int i = 0; i < features.size(); ++i) {
+        values[order[r]][i] = sortedValues[i][r];
+      }
+    }
+    return values;
+  }
+}
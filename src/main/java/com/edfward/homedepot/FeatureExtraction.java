@@ -1,5 +1,8 @@
 package com.edfward.homedepot;
 
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
@@ -10,34 +13,81 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 
 public class FeatureExtraction {
+  private static final LongAdder ROWS = Metrics.counter(Metrics.ROWS);
+
+  private final int threads;
+
+  private final boolean groupBySearchTerm;
+
+  // Null to compute every value.
+  private final FeatureCache cache;
+
+  public FeatureExtraction() {
+    this(1, false);
+  }
+
+  public FeatureExtraction(int threads, boolean groupBySearchTerm) {
+    this(threads, groupBySearchTerm, null);
+  }
+
+  /**
+   * @param threads number of rows (or row groups) to compute features for concurrently. Output order always follows
+   *                the input.
+   * @param groupBySearchTerm whether to load all query rows and compute rows sharing the same search terms
+   *                          together, analyzing and weighting each query once per group.
+   * @param cache values of earlier runs to reuse, and to add computed values to. May be null.
+   */
+  FeatureExtraction(int threads, boolean groupBySearchTerm, FeatureCache cache) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread, got " + threads);
+    }
+    this.threads = threads;
+    this.groupBySearchTerm = groupBySearchTerm;
+    this.cache = cache;
+  }
+
   public static void main(String[] args) throws IOException, ParseException {
-    FeatureExtraction extractor = new FeatureExtraction();
+    // Values computed by earlier runs against the same index are read from the cache. It is closed even if the run
+    // fails, so the values computed until then are kept.
+    try (FeatureCache cache = FeatureCache.open(Paths.get("data/feature-cache"))) {
+      FeatureExtraction extractor = new FeatureExtraction(Runtime.getRuntime().availableProcessors(), true, cache);
+
+      // To create a feature store with all features.
+      // extractor.createFeatureStore("data/train.csv", "data/train-feature");
+      // extractor.createFeatureStore("data/test.csv", "data/test-feature");
 
-    // To create a feature CSV with all features.
-    // extractor.createFeatureCSV("data/train.csv", "data/train-feature-14.csv");
-    // extractor.createFeatureCSV("data/test.csv", "data/test-feature-14.csv");
+      // Or, add features to an existing feature store.
+      // extractor.addFeatureStore("data/test.csv", "data/test-feature",
+      extractor.addFeatureStore("data/train.csv", "data/train-feature", extraFeatures());
 
-    // Or, add features to existing feature CSV file.
-    // extractor.addFeatureCSV("data/test.csv", "data/test-feature-14.csv", "data/test-feature-24.csv",
-    extractor.addFeatureCSV("data/train.csv", "data/train-feature-14.csv", "data/train-feature-24.csv",
-        Arrays.asList(new IDFFeature(Constant.FIELD_TITLE), new IDFFeature(Constant.FIELD_DESCRIPTION),
-            new IDFSIGIRFeature(Constant.FIELD_TITLE), new IDFSIGIRFeature(Constant.FIELD_DESCRIPTION),
-            new IDFSIGIR2Feature(Constant.FIELD_TITLE), new IDFSIGIR2Feature(Constant.FIELD_DESCRIPTION),
-            new IDFSIGIR3Feature(Constant.FIELD_TITLE), new IDFSIGIR3Feature(Constant.FIELD_DESCRIPTION),
-            new TermSIGIRFeature(Constant.FIELD_TITLE), new TermSIGIRFeature(Constant.FIELD_DESCRIPTION)));
+      // Feature CSVs, e.g. for scikit-learn, are still available with `createFeatureCSV` and `addFeatureCSV`, or by
+      // exporting a store.
+      // FeatureStore store = FeatureStore.open(Paths.get("data/train-feature"));
+      // store.exportCSV("data/train-feature-24.csv", store.getNames());
+
+      System.err.println("Feature cache: " + cache.stats());
+    }
+    System.err.println("Term statistics cache: " + FeatureBase.termStatsCache.stats());
+    System.err.println("Stored field cache: " + FeatureBase.storedFieldCache);
   }
 
-  public void createFeatureCSV(String inputQueryFilePath, String outputFeatureFilePath)
-      throws IOException, ParseException {
+  // Features of a new feature file.
+  static List<Feature> baseFeatures() {
     List<Feature> features = new ArrayList<>();
     for (String field : Arrays.asList(Constant.FIELD_TITLE, Constant.FIELD_DESCRIPTION)) {
       features.add(new BM25Feature(field));
@@ -48,6 +98,40 @@ public class FeatureExtraction {
       features.add(new TFNormalizedFeature(field));
       features.add(new TFNormalizedSIGIRFeature(field));
     }
+    return features;
+  }
+
+  // Features added to existing feature files.
+  static List<Feature> extraFeatures() {
+    return Arrays.asList(new IDFFeature(Constant.FIELD_TITLE), new IDFFeature(Constant.FIELD_DESCRIPTION),
+        new IDFSIGIRFeature(Constant.FIELD_TITLE), new IDFSIGIRFeature(Constant.FIELD_DESCRIPTION),
+        new IDFSIGIR2Feature(Constant.FIELD_TITLE), new IDFSIGIR2Feature(Constant.FIELD_DESCRIPTION),
+        new IDFSIGIR3Feature(Constant.FIELD_TITLE), new IDFSIGIR3Feature(Constant.FIELD_DESCRIPTION),
+        new TermSIGIRFeature(Constant.FIELD_TITLE), new TermSIGIRFeature(Constant.FIELD_DESCRIPTION),
+        new PositionalOverlapFeature(Constant.FIELD_TITLE), new PositionalOverlapFeature(Constant.FIELD_DESCRIPTION));
+  }
+
+  /** Features called `names`, in that order, out of the base and extra features. */
+  static List<Feature> featuresNamed(List<String> names) {
+    Map<String, Feature> byName = new HashMap<>();
+    for (Feature feature : Iterables.concat(baseFeatures(), extraFeatures())) {
+      byName.put(feature.getName(), feature);
+    }
+    List<Feature> features = new ArrayList<>(names.size());
+    for (String name : names) {
+      Feature feature = byName.get(name);
+      if (feature == null) {
+        throw new IllegalArgumentException("Unknown feature: " + name);
+      }
+      features.add(feature);
+    }
+    return features;
+  }
+
+  public void createFeatureCSV(String inputQueryFilePath, String outputFeatureFilePath)
+      throws IOException, ParseException {
+    List<Feature> features = baseFeatures();
+    FeatureEvaluator evaluator = new FeatureEvaluator(features, cache);
 
     // Automatic Resource Management.
     try (
@@ -65,20 +149,16 @@ public class FeatureExtraction {
       // Print header.
       outputCSVPrinter.printRecord(headers);
 
-      for (CSVRecord queryRecord : queryFileParser) {
-        Long productID = Long.parseLong(queryRecord.get(Constant.CSV_PRODUCT_ID));
-        String searchTerms = queryRecord.get(Constant.CSV_SEARCH_TERM);
-
+      computeFeatures(queryFileParser.iterator(), evaluator, row -> {
         List<Float> featureRecord = new ArrayList<>(headers.size());
-        for (Feature feature : features) {
-          float featureVal = feature.getValue(productID, searchTerms);
+        for (float featureVal : row.featureVals) {
           featureRecord.add(featureVal);
         }
         if (hasRelevance) {
-          featureRecord.add(Float.valueOf(queryRecord.get(Constant.CSV_RELEVANCE)));
+          featureRecord.add(Float.valueOf(row.queryRecord.get(Constant.CSV_RELEVANCE)));
         }
         outputCSVPrinter.printRecord(featureRecord);
-      }
+      });
     }
   }
 
@@ -87,6 +167,8 @@ public class FeatureExtraction {
       String existingFeatureFilePath,
       String outputFeatureFilePath,
       List<Feature> features) throws IOException, ParseException {
+    FeatureEvaluator evaluator = new FeatureEvaluator(features, cache);
+
     // Automatic Resource Management.
     try (
         CSVParser queryFileParser = CSVParser.parse(
@@ -111,18 +193,14 @@ public class FeatureExtraction {
       outputCSVPrinter.printRecord(headers);
 
       // Assume query file and feature file have same number of lines.
-      Iterator<CSVRecord> qIt = queryFileParser.iterator(), fIt = featureFileParser.iterator();
-      while (qIt.hasNext() && fIt.hasNext()) {
-        CSVRecord queryRecord = qIt.next();
-        CSVRecord existingFeatureRecord = fIt.next();
-
-        Long productID = Long.parseLong(queryRecord.get(Constant.CSV_PRODUCT_ID));
-        String searchTerms = queryRecord.get(Constant.CSV_SEARCH_TERM);
-
-        Map<String, String> featureMap = existingFeatureRecord.toMap();
-        for (Feature feature : features) {
-          float featureVal = feature.getValue(productID, searchTerms);
-          featureMap.put(feature.getName(), String.valueOf(featureVal));
+      Iterator<CSVRecord> fIt = featureFileParser.iterator();
+      computeFeatures(queryFileParser.iterator(), evaluator, row -> {
+        if (!fIt.hasNext()) {
+          return;
+        }
+        Map<String, String> featureMap = fIt.next().toMap();
+        for (int i = 0; i < row.featureVals.length; ++i) {
+          featureMap.put(features.get(i).getName(), String.valueOf(row.featureVals[i]));
         }
 
         Object[] featureRecord = headers
@@ -130,7 +208,191 @@ public class FeatureExtraction {
             .map(h -> featureMap.get(h))
             .toArray(String[]::new);
         outputCSVPrinter.printRecord(featureRecord);
+      });
+    }
+  }
+
+  /**
+   * Create a {@link FeatureStore} with all features, and relevance if the query file has it.
+   */
+  public void createFeatureStore(String inputQueryFilePath, String outputStorePath)
+      throws IOException, ParseException {
+    addFeatureStore(inputQueryFilePath, outputStorePath, baseFeatures());
+  }
+
+  /**
+   * Add `features` to a {@link FeatureStore}, creating it if needed. Only the columns of `features` (and relevance,
+   * when the store doesn't have it yet) are written; other columns are left as they are.
+   */
+  public void addFeatureStore(String inputQueryFilePath, String storePath, List<Feature> features)
+      throws IOException, ParseException {
+    Path storeDirectory = Paths.get(storePath);
+    FeatureEvaluator evaluator = new FeatureEvaluator(features, cache);
+    List<String> names = features.stream().map(Feature::getName).collect(Collectors.toCollection(ArrayList::new));
+
+    try (
+        CSVParser queryFileParser = CSVParser.parse(
+            new File(inputQueryFilePath), Charset.defaultCharset(), CSVFormat.DEFAULT.withHeader())
+    ) {
+      boolean addRelevance = queryFileParser.getHeaderMap().containsKey(Constant.CSV_RELEVANCE)
+          && !(FeatureStore.exists(storeDirectory)
+          && FeatureStore.open(storeDirectory).contains(Constant.CSV_RELEVANCE));
+      if (addRelevance) {
+        names.add(Constant.CSV_RELEVANCE);
       }
+
+      try (FeatureStore.Writer writer = FeatureStore.writer(storeDirectory, names)) {
+        float[] values = new float[names.size()];
+        computeFeatures(queryFileParser.iterator(), evaluator, row -> {
+          System.arraycopy(row.featureVals, 0, values, 0, row.featureVals.length);
+          if (addRelevance) {
+            values[values.length - 1] = Float.parseFloat(row.queryRecord.get(Constant.CSV_RELEVANCE));
+          }
+          writer.addRow(values);
+        });
+        writer.commit();
+      }
+    }
+  }
+
+  // Feature values of every query row, handed to `sink` in input order.
+  private void computeFeatures(
+      Iterator<CSVRecord> queryRecords, FeatureEvaluator evaluator, OrderedTasks.Sink<FeatureRow> sink)
+      throws IOException, ParseException {
+    if (!Metrics.ENABLED) {
+      computeRows(queryRecords, evaluator, sink);
+      return;
+    }
+    Metrics.Sampler sampler = Metrics.startSampling("FeatureExtraction");
+    try {
+      computeRows(timeReads(queryRecords), evaluator, timeWrites(sink));
+    } finally {
+      sampler.close();
+    }
+  }
+
+  // Records the time of reading each query record as `csv.read`.
+  private static Iterator<CSVRecord> timeReads(Iterator<CSVRecord> queryRecords) {
+    Metrics.Histogram latency = Metrics.histogram("csv.read");
+    return new Iterator<CSVRecord>() {
+      // The parser reads ahead in `hasNext`.
+      private long readNanos;
+
+      @Override
+      public boolean hasNext() {
+        long start = System.nanoTime();
+        boolean hasNext = queryRecords.hasNext();
+        readNanos += System.nanoTime() - start;
+        return hasNext;
+      }
+
+      @Override
+      public CSVRecord next() {
+        long start = System.nanoTime();
+        CSVRecord record = queryRecords.next();
+        latency.record(readNanos + System.nanoTime() - start);
+        readNanos = 0;
+        return record;
+      }
+    };
+  }
+
+  // Records the time of writing each row as `csv.write`.
+  private static OrderedTasks.Sink<FeatureRow> timeWrites(OrderedTasks.Sink<FeatureRow> sink) {
+    Metrics.Histogram latency = Metrics.histogram("csv.write");
+    return row -> {
+      long start = System.nanoTime();
+      sink.accept(row);
+      latency.record(System.nanoTime() - start);
+    };
+  }
+
+  private void computeRows(
+      Iterator<CSVRecord> queryRecords, FeatureEvaluator evaluator, OrderedTasks.Sink<FeatureRow> sink)
+      throws IOException, ParseException {
+    if (!groupBySearchTerm) {
+      Iterator<Callable<FeatureRow>> rowTasks = Iterators.transform(queryRecords, queryRecord -> () -> {
+        Long productID = Long.parseLong(queryRecord.get(Constant.CSV_PRODUCT_ID));
+        String searchTerms = queryRecord.get(Constant.CSV_SEARCH_TERM);
+        return new FeatureRow(queryRecord, evaluator.evaluate(new QueryContext(productID, searchTerms)));
+      });
+      StartupTimer timer = new StartupTimer("FeatureExtraction");
+      OrderedTasks.run(threads, rowTasks, row -> {
+        sink.accept(row);
+        timer.rowsDone(1);
+        if (Metrics.ENABLED) {
+          ROWS.increment();
+        }
+      });
+      flushCache();
+      return;
+    }
+
+    List<CSVRecord> records = Lists.newArrayList(queryRecords);
+    Map<String, List<Integer>> groups = groupBySearchTerms(records);
+
+    // Each group task scatters its values into its own rows and returns how many there were.
+    float[][] featureVals = new float[records.size()][];
+    Iterator<Callable<Integer>> groupTasks = Iterators.transform(groups.entrySet().iterator(), group -> () -> {
+      List<Integer> rows = group.getValue();
+      QueryContext[] contexts = groupContexts(records, group.getKey(), rows);
+      float[][] groupVals = evaluator.evaluate(contexts);
+      for (int i = 0; i < contexts.length; ++i) {
+        featureVals[rows.get(i)] = groupVals[i];
+      }
+      return rows.size();
+    });
+    StartupTimer timer = new StartupTimer("FeatureExtraction");
+    // Rows are counted as their groups complete, as they are only written once all have.
+    OrderedTasks.run(threads, groupTasks, rows -> {
+      timer.rowsDone(rows);
+      if (Metrics.ENABLED) {
+        ROWS.add(rows);
+      }
+    });
+
+    for (int i = 0; i < records.size(); ++i) {
+      sink.accept(new FeatureRow(records.get(i), featureVals[i]));
+    }
+    flushCache();
+  }
+
+  /**
+   * Rows of `records` with identical search terms, in order of first appearance. Terms are not lower-cased, as the
+   * query parser treats upper-case AND/OR/NOT as operators.
+   */
+  static Map<String, List<Integer>> groupBySearchTerms(List<CSVRecord> records) {
+    Map<String, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < records.size(); ++i) {
+      groups.computeIfAbsent(records.get(i).get(Constant.CSV_SEARCH_TERM), k -> new ArrayList<>()).add(i);
+    }
+    return groups;
+  }
+
+  /** Contexts of the `rows` of `records` with `searchTerms`, sharing its analysis. */
+  static QueryContext[] groupContexts(List<CSVRecord> records, String searchTerms, List<Integer> rows) {
+    QueryContext query = new QueryContext(null, searchTerms);
+    QueryContext[] contexts = new QueryContext[rows.size()];
+    for (int i = 0; i < contexts.length; ++i) {
+      contexts[i] = query.withProduct(Long.parseLong(records.get(rows.get(i)).get(Constant.CSV_PRODUCT_ID)));
+    }
+    return contexts;
+  }
+
+  private void flushCache() throws IOException {
+    if (cache != null) {
+      cache.flush();
+    }
+  }
+
+  private static class FeatureRow {
+    final CSVRecord queryRecord;
+
+    final float[] featureVals;
+
+    FeatureRow(CSVRecord queryRecord, float[] featureVals) {
+      this.queryRecord = queryRecord;
+      this.featureVals = featureVals;
     }
   }
 }
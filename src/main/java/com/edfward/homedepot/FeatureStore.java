@@ -0,0 +1,254 @@
+package com.edfward.homedepot;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+import java.io.Closeable;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feature values of a query file, stored by column.
+ * <p>
+ * A store is a directory with a `header` file (the row count on the first line, then one column name per line) and
+ * one file of little-endian floats per column. Columns are memory-mapped when the store is opened, and adding
+ * features to a store only writes their columns and the header.
+ */
+final class FeatureStore {
+  static final String HEADER_FILE = "header";
+
+  static final String COLUMN_SUFFIX = ".f32";
+
+  private final int rows;
+
+  private final Map<String, FloatBuffer> columns;
+
+  private FeatureStore(int rows, Map<String, FloatBuffer> columns) {
+    this.rows = rows;
+    this.columns = columns;
+  }
+
+  static boolean exists(Path directory) {
+    return Files.exists(directory.resolve(HEADER_FILE));
+  }
+
+  static FeatureStore open(Path directory) throws IOException {
+    List<String> header = Files.readAllLines(directory.resolve(HEADER_FILE), StandardCharsets.UTF_8);
+    int rows = Integer.parseInt(header.get(0));
+    Map<String, FloatBuffer> columns = new LinkedHashMap<>();
+    for (String name : header.subList(1, header.size())) {
+      try (FileChannel channel = FileChannel.open(columnPath(directory, name), StandardOpenOption.READ)) {
+        if (channel.size() != (long) rows * Float.BYTES) {
+          throw new IOException("Column '" + name + "' of " + directory + " has " + channel.size() + " bytes, "
+              + "expected " + rows + " rows");
+        }
+        FloatBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .asFloatBuffer();
+        columns.put(name, column);
+      }
+    }
+    return new FeatureStore(rows, columns);
+  }
+
+  private static Path columnPath(Path directory, String name) {
+    return directory.resolve(name + COLUMN_SUFFIX);
+  }
+
+  int rows() {
+    return rows;
+  }
+
+  /** Column names in header order. */
+  List<String> getNames() {
+    return Collections.unmodifiableList(new ArrayList<>(columns.keySet()));
+  }
+
+  boolean contains(String name) {
+    return columns.containsKey(name);
+  }
+
+  /** Read-only view of a column, backed by the mapped file. */
+  FloatBuffer column(String name) {
+    FloatBuffer column = columns.get(name);
+    if (column == null) {
+      throw new IllegalArgumentException("No column '" + name + "' in feature store");
+    }
+    return column.duplicate();
+  }
+
+  /** Copy of rows [`from`, `to`) of a column. */
+  float[] read(String name, int from, int to) {
+    float[] values = new float[to - from];
+    FloatBuffer column = column(name);
+    column.position(from);
+    column.get(values);
+    return values;
+  }
+
+  float get(String name, int row) {
+    return column(name).get(row);
+  }
+
+  /** Write `names` columns as CSV with a header, e.g. for scikit-learn. */
+  void exportCSV(String outputFilePath, List<String> names) throws IOException {
+    List<FloatBuffer> exported = new ArrayList<>(names.size());
+    for (String name : names) {
+      exported.add(column(name));
+    }
+    try (
+        FileWriter outputWriter = new FileWriter(outputFilePath);
+        CSVPrinter outputCSVPrinter = new CSVPrinter(outputWriter, CSVFormat.DEFAULT)
+    ) {
+      outputCSVPrinter.printRecord(names);
+      List<Float> record = new ArrayList<>(names.size());
+      for (int row = 0; row < rows; ++row) {
+        record.clear();
+        for (FloatBuffer column : exported) {
+          record.add(column.get(row));
+        }
+        outputCSVPrinter.printRecord(record);
+      }
+    }
+  }
+
+  /**
+   * Writer of new columns, row by row. Columns already in the store with the same name are replaced, others are
+   * kept, in which case the number of written rows must match the store. Nothing changes in the store until
+   * {@link Writer#commit()}; closing without it discards the columns.
+   */
+  static Writer writer(Path directory, List<String> names) throws IOException {
+    return new Writer(directory, names);
+  }
+
+  static final class Writer implements Closeable {
+    // Floats buffered per column before writing.
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path directory;
+
+    private final List<String> names;
+
+    private final FileChannel[] channels;
+
+    private final ByteBuffer[] buffers;
+
+    private int rows;
+
+    private boolean committed;
+
+    private Writer(Path directory, List<String> names) throws IOException {
+      this.directory = directory;
+      this.names = new ArrayList<>(names);
+      this.channels = new FileChannel[names.size()];
+      this.buffers = new ByteBuffer[names.size()];
+      Files.createDirectories(directory);
+      for (int i = 0; i < channels.length; ++i) {
+        channels[i] = FileChannel.open(tempPath(names.get(i)),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        buffers[i] = ByteBuffer.allocate(BUFFER_SIZE * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    // Columns are written next to the store and moved in place on commit, so readers never see half a column.
+    private Path tempPath(String name) {
+      return directory.resolve(name + COLUMN_SUFFIX + ".tmp");
+    }
+
+    /** Append one row, with a value per column in the order given to {@link #writer(Path, List)}. */
+    void addRow(float[] values) throws IOException {
+      if (values.length != channels.length) {
+        throw new IllegalArgumentException("Expected " + channels.length + " values, got " + values.length);
+      }
+      for (int i = 0; i < values.length; ++i) {
+        if (!buffers[i].hasRemaining()) {
+          flush(i);
+        }
+        buffers[i].putFloat(values[i]);
+      }
+      ++rows;
+    }
+
+    private void flush(int column) throws IOException {
+      ByteBuffer buffer = buffers[column];
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channels[column].write(buffer);
+      }
+      buffer.clear();
+    }
+
+    /** Flush the columns, move them in place and add them to the store's header. */
+    void commit() throws IOException {
+      if (committed) {
+        throw new IllegalStateException("Feature store writer already committed");
+      }
+      closeChannels(true);
+
+      List<String> header = new ArrayList<>();
+      header.add(String.valueOf(rows));
+      if (exists(directory)) {
+        List<String> existing = Files.readAllLines(directory.resolve(HEADER_FILE), StandardCharsets.UTF_8);
+        int existingRows = Integer.parseInt(existing.get(0));
+        if (existingRows != rows && !names.containsAll(existing.subList(1, existing.size()))) {
+          throw new IOException("Feature store " + directory + " has " + existingRows + " rows, wrote " + rows);
+        }
+        header.addAll(existing.subList(1, existing.size()));
+      }
+      // Replaced columns keep their position, new ones go last.
+      for (String name : names) {
+        if (!header.subList(1, header.size()).contains(name)) {
+          header.add(name);
+        }
+      }
+
+      for (String name : names) {
+        Files.move(tempPath(name), columnPath(directory, name), StandardCopyOption.REPLACE_EXISTING);
+      }
+      Path tempHeader = directory.resolve(HEADER_FILE + ".tmp");
+      Files.write(tempHeader, header, StandardCharsets.UTF_8);
+      Files.move(tempHeader, directory.resolve(HEADER_FILE), StandardCopyOption.REPLACE_EXISTING);
+      committed = true;
+    }
+
+    private void closeChannels(boolean flush) throws IOException {
+      try {
+        for (int i = 0; i < channels.length && flush; ++i) {
+          if (channels[i].isOpen()) {
+            flush(i);
+          }
+        }
+      } finally {
+        for (FileChannel channel : channels) {
+          channel.close();
+        }
+      }
+    }
+
+    /** Discard the written columns unless {@link #commit()} succeeded; the store is left as it was. */
+    @Override
+    public void close() throws IOException {
+      if (committed) {
+        return;
+      }
+      closeChannels(false);
+      for (String name : names) {
+        Files.deleteIfExists(tempPath(name));
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package com.edfward.homedepot;
+
+import org.deeplearning4j.datasets.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Batches of rows of a {@link FeatureStore} for training and prediction.
+ * <p>
+ * Batches are column-major, so each feature of a batch is a single bulk copy out of its mapped column; nothing is
+ * parsed. Without a label column the labels of a batch are all zero.
+ * <p>
+ * With {@link #setShuffle(int, long)}, rows come out of a bounded buffer filled in store order: each row is picked at
+ * random from the buffer and replaced by the next row of the store. Reads stay within a window of the mapped
+ * columns, and every {@link #reset()} starts a new order.
+ * <p>
+ * Not serializable, although `DataSetIterator` is: the mapped columns can't be written out.
+ */
+class FeatureStoreDataSetIterator implements DataSetIterator {
+  private static final long serialVersionUID = 1L;
+
+  private final transient List<FloatBuffer> featureColumns = new ArrayList<>();
+
+  private final transient FloatBuffer labelColumn;
+
+  // Rows [from, to) of the store.
+  private final int from;
+
+  private final int to;
+
+  private final int batchSize;
+
+  // Rows returned since the last reset.
+  private int cursor;
+
+  private DataSetPreProcessor preProcessor;
+
+  // Shuffle buffer of row numbers, null when rows come in store order.
+  private int[] buffer;
+
+  private int buffered;
+
+  // Next row of the store to enter the buffer.
+  private int nextRow;
+
+  private Random random;
+
+  /**
+   * @param labelName column to predict, or null for unlabeled rows.
+   */
+  FeatureStoreDataSetIterator(FeatureStore store, List<String> featureNames, String labelName, int batchSize) {
+    this(store, featureNames, labelName, batchSize, 0, store.rows());
+  }
+
+  /**
+   * Rows [`from`, `to`) of the store only, e.g. to hold out the rest for validation.
+   */
+  FeatureStoreDataSetIterator(
+      FeatureStore store, List<String> featureNames, String labelName, int batchSize, int from, int to) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+    }
+    if (from < 0 || from > to || to > store.rows()) {
+      throw new IllegalArgumentException("Rows [" + from + ", " + to + ") out of " + store.rows());
+    }
+    for (String name : featureNames) {
+      featureColumns.add(store.column(name));
+    }
+    this.labelColumn = labelName == null ? null : store.column(labelName);
+    this.from = from;
+    this.to = to;
+    this.batchSize = batchSize;
+    this.nextRow = from;
+  }
+
+  /** Shuffle rows through a buffer of `bufferRows` rows, starting from `seed`. */
+  FeatureStoreDataSetIterator setShuffle(int bufferRows, long seed) {
+    if (bufferRows < 1) {
+      throw new IllegalArgumentException("Shuffle buffer must hold at least one row, got " + bufferRows);
+    }
+    buffer = new int[Math.min(bufferRows, Math.max(1, to - from))];
+    random = new Random(seed);
+    reset();
+    return this;
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    int size = Math.min(num, to - from - cursor);
+    float[] features = new float[size * featureColumns.size()];
+    float[] labels = new float[size];
+    if (buffer == null) {
+      for (int i = 0; i < featureColumns.size(); ++i) {
+        FloatBuffer column = featureColumns.get(i);
+        column.position(from + cursor);
+        column.get(features, i * size, size);
+      }
+      if (labelColumn != null) {
+        labelColumn.position(from + cursor);
+        labelColumn.get(labels);
+      }
+    } else {
+      int[] batchRows = new int[size];
+      for (int j = 0; j < size; ++j) {
+        batchRows[j] = nextShuffledRow();
+      }
+      for (int i = 0; i < featureColumns.size(); ++i) {
+        FloatBuffer column = featureColumns.get(i);
+        for (int j = 0; j < size; ++j) {
+          features[i * size + j] = column.get(batchRows[j]);
+        }
+      }
+      if (labelColumn != null) {
+        for (int j = 0; j < size; ++j) {
+          labels[j] = labelColumn.get(batchRows[j]);
+        }
+      }
+    }
+    cursor += size;
+
+    DataSet dataSet = new DataSet(
+        Nd4j.create(features, new int[]{size, featureColumns.size()}, 'f'),
+        Nd4j.create(labels, new int[]{size, 1}, 'f'));
+    if (preProcessor != null) {
+      preProcessor.preProcess(dataSet);
+    }
+    return dataSet;
+  }
+
+  private int nextShuffledRow() {
+    while (buffered < buffer.length && nextRow < to) {
+      buffer[buffered++] = nextRow++;
+    }
+    int i = random.nextInt(buffered);
+    int row = buffer[i];
+    buffer[i] = buffer[--buffered];
+    return row;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < to - from;
+  }
+
+  @Override
+  public int totalExamples() {
+    return to - from;
+  }
+
+  @Override
+  public int inputColumns() {
+    return featureColumns.size();
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return 1;
+  }
+
+  @Override
+  public void reset() {
+    cursor = 0;
+    buffered = 0;
+    nextRow = from;
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return to - from;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return Collections.emptyList();
+  }
+
+  private void writeObject(ObjectOutputStream out) throws NotSerializableException {
+    throw new NotSerializableException(getClass().getName() + " reads mapped feature store columns");
+  }
+}
@@ -0,0 +1,179 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.util.Bits;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lower-cased stored text of fields, per internal document ID of one {@link IndexReader}, for {@link OverlapFeature}.
+ * <p>
+ * Built with one pass over the stored fields, the text of each field is kept as UTF-8 in a memory-mapped temporary
+ * file, outside the heap, with an offset per document. Counting search terms in it then neither loads documents nor
+ * allocates. Enabled with {@value #ENABLED_PROPERTY}=true, as the pass adds to startup.
+ */
+final class FieldTexts {
+  static final String ENABLED_PROPERTY = "homedepot.overlap.texts";
+
+  static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  private final Map<String, Text> texts = new HashMap<>();
+
+  private FieldTexts() {
+  }
+
+  private static final class Text {
+    // Document `d` is bytes [offsets[d], offsets[d + 1]).
+    final int[] offsets;
+
+    final ByteBuffer bytes;
+
+    Text(int[] offsets, ByteBuffer bytes) {
+      this.offsets = offsets;
+      this.bytes = bytes;
+    }
+  }
+
+  static FieldTexts load(IndexReader reader, String... fields) throws IOException {
+    long startTime = System.nanoTime();
+    Path[] files = new Path[fields.length];
+    OutputStream[] outs = new OutputStream[fields.length];
+    int[][] offsets = new int[fields.length][reader.maxDoc() + 1];
+    try {
+      for (int f = 0; f < fields.length; ++f) {
+        files[f] = Files.createTempFile("homedepot-" + fields[f] + "-", ".txt");
+        outs[f] = new BufferedOutputStream(Files.newOutputStream(files[f]));
+      }
+
+      // Text of the current document, per field; missing fields are empty.
+      byte[][] docTexts = new byte[fields.length][];
+      StoredFieldVisitor visitor = new StoredFieldVisitor() {
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+          return indexOf(fields, fieldInfo.name) >= 0 ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, byte[] value) {
+          docTexts[indexOf(fields, fieldInfo.name)] = normalize(new String(value, StandardCharsets.UTF_8));
+        }
+      };
+
+      long[] sizes = new long[fields.length];
+      for (LeafReaderContext leaf : reader.leaves()) {
+        LeafReader leafReader = leaf.reader();
+        Bits liveDocs = leafReader.getLiveDocs();
+        for (int doc = 0; doc < leafReader.maxDoc(); ++doc) {
+          Arrays.fill(docTexts, null);
+          if (liveDocs == null || liveDocs.get(doc)) {
+            leafReader.document(doc, visitor);
+          }
+          for (int f = 0; f < fields.length; ++f) {
+            if (docTexts[f] != null) {
+              outs[f].write(docTexts[f]);
+              sizes[f] += docTexts[f].length;
+            }
+            if (sizes[f] > Integer.MAX_VALUE) {
+              throw new IllegalStateException("Text of '" + fields[f] + "' is too large to map");
+            }
+            offsets[f][leaf.docBase + doc + 1] = (int) sizes[f];
+          }
+        }
+      }
+
+      FieldTexts fieldTexts = new FieldTexts();
+      long totalSize = 0;
+      for (int f = 0; f < fields.length; ++f) {
+        outs[f].close();
+        outs[f] = null;
+        try (FileChannel channel = FileChannel.open(files[f])) {
+          ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          fieldTexts.texts.put(fields[f], new Text(offsets[f], bytes));
+        }
+        totalSize += sizes[f];
+      }
+      System.err.printf("Loaded lower-cased text of %s (%d MB) in %d ms%n",
+          Arrays.toString(fields), totalSize >> 20, (System.nanoTime() - startTime) / 1_000_000);
+      return fieldTexts;
+    } finally {
+      for (int f = 0; f < fields.length; ++f) {
+        if (outs[f] != null) {
+          outs[f].close();
+        }
+        // Mappings outlive the file where the OS allows it; elsewhere it goes at exit.
+        if (files[f] != null) {
+          try {
+            Files.delete(files[f]);
+          } catch (IOException e) {
+            files[f].toFile().deleteOnExit();
+          }
+        }
+      }
+    }
+  }
+
+  private static int indexOf(String[] fields, String field) {
+    for (int f = 0; f < fields.length; ++f) {
+      if (fields[f].equals(field)) {
+        return f;
+      }
+    }
+    return -1;
+  }
+
+  /** Text as stored here and as searched for: lower-cased UTF-8. */
+  static byte[] normalize(String text) {
+    return text.toLowerCase().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Occurrences of `pattern`, a {@link #normalize(String)}d string, in the text of `field` of document `docID`, not
+   * overlapping each other. Same as counting the lower-cased strings with `StringUtils.countMatches`.
+   */
+  int countMatches(String field, int docID, byte[] pattern) {
+    Text text = texts.get(field);
+    if (text == null) {
+      throw new IllegalArgumentException("Text of field '" + field + "' is not loaded");
+    }
+    if (pattern.length == 0) {
+      return 0;
+    }
+    ByteBuffer bytes = text.bytes;
+    byte first = pattern[0];
+    int last = text.offsets[docID + 1] - pattern.length;
+    int count = 0;
+    int i = text.offsets[docID];
+    while (i <= last) {
+      if (bytes.get(i) == first && matchesAt(bytes, i, pattern)) {
+        ++count;
+        i += pattern.length;
+      } else {
+        ++i;
+      }
+    }
+    return count;
+  }
+
+  private static boolean matchesAt(ByteBuffer bytes, int start, byte[] pattern) {
+    for (int j = 1; j < pattern.length; ++j) {
+      if (bytes.get(start + j) != pattern[j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,128 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Opens {@link Indexing#INDEX_PATH} for searching.
+ * <p>
+ * The directory implementation is picked with {@value #DIRECTORY_PROPERTY} (`mmap`, the default, `nio` or `ram` to
+ * copy the whole index to the heap), and {@value #WARMUP_PROPERTY}=true reads the parts of the index used by the
+ * features once before the first row, instead of paying cold-cache costs during the run.
+ */
+final class IndexAccess {
+  static final String DIRECTORY_PROPERTY = "homedepot.directory";
+
+  static final String WARMUP_PROPERTY = "homedepot.warmup";
+
+  private IndexAccess() {
+  }
+
+  enum DirectoryMode {
+    MMAP, NIO, RAM
+  }
+
+  /** Open the index as configured by system properties. */
+  static DirectoryReader open() throws IOException {
+    String directory = System.getProperty(DIRECTORY_PROPERTY, "mmap");
+    DirectoryMode mode;
+    try {
+      mode = DirectoryMode.valueOf(directory.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          "Unknown " + DIRECTORY_PROPERTY + " '" + directory + "', expected mmap, nio or ram");
+    }
+    return open(mode, Boolean.getBoolean(WARMUP_PROPERTY));
+  }
+
+  static DirectoryReader open(DirectoryMode mode, boolean warmUp) throws IOException {
+    long startTime = System.nanoTime();
+    DirectoryReader reader = DirectoryReader.open(openDirectory(mode, Indexing.INDEX_PATH));
+    System.err.printf("Opened index (%s) in %d ms%n", mode, (System.nanoTime() - startTime) / 1_000_000);
+
+    if (warmUp) {
+      startTime = System.nanoTime();
+      warmUp(reader, Constant.FIELD_TITLE, Constant.FIELD_DESCRIPTION);
+      System.err.printf("Warmed up index in %d ms%n", (System.nanoTime() - startTime) / 1_000_000);
+    }
+    return reader;
+  }
+
+  private static Directory openDirectory(DirectoryMode mode, Path path) throws IOException {
+    switch (mode) {
+      case NIO:
+        return new NIOFSDirectory(path);
+      case RAM:
+        try (FSDirectory directory = FSDirectory.open(path)) {
+          return new RAMDirectory(directory, IOContext.READONCE);
+        }
+      default:
+        return new MMapDirectory(path);
+    }
+  }
+
+  /** Read the terms dictionary, postings, norms and stored values of `fields` once. */
+  static void warmUp(IndexReader reader, String... fields) throws IOException {
+    Set<String> storedFields = new HashSet<>(Arrays.asList(fields));
+    StoredFieldVisitor visitor = new StoredFieldVisitor() {
+      @Override
+      public Status needsField(FieldInfo fieldInfo) {
+        return storedFields.contains(fieldInfo.name) ? Status.YES : Status.NO;
+      }
+    };
+
+    for (LeafReaderContext leaf : reader.leaves()) {
+      LeafReader leafReader = leaf.reader();
+      for (String field : fields) {
+        Terms terms = leafReader.terms(field);
+        if (terms != null) {
+          TermsEnum termsEnum = terms.iterator();
+          PostingsEnum postingsEnum = null;
+          while (termsEnum.next() != null) {
+            postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.POSITIONS);
+            while (postingsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+              for (int i = 0; i < postingsEnum.freq(); ++i) {
+                postingsEnum.nextPosition();
+              }
+            }
+          }
+        }
+        NumericDocValues norms = leafReader.getNormValues(field);
+        if (norms != null) {
+          for (int doc = 0; doc < leafReader.maxDoc(); ++doc) {
+            norms.get(doc);
+          }
+        }
+      }
+
+      Bits liveDocs = leafReader.getLiveDocs();
+      for (int doc = 0; doc < leafReader.maxDoc(); ++doc) {
+        if (liveDocs == null || liveDocs.get(doc)) {
+          leafReader.document(doc, visitor);
+        }
+      }
+    }
+  }
+}
@@ -1,16 +1,22 @@
 package com.edfward.homedepot;
 
+import com.google.common.base.Throwables;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 
@@ -18,17 +24,32 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.function.BiFunction;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Product {
+  long id;
   String title = "";
   String description = "";
-  // TODO: Init attributes. Ignore for now.
-  Map<String, String> attributes;
+  Map<String, String> attributes = new LinkedHashMap<>();
 
   @Override
   public String toString() {
@@ -41,82 +62,398 @@ class Product {
 
 public class Indexing {
 
-  public static final Path INDEX_PATH = FileSystems.getDefault().getPath("index");
+  // Both paths can be moved with system properties, e.g. to point at a synthetic data set.
+  public static final Path INDEX_PATH =
+      FileSystems.getDefault().getPath(System.getProperty("homedepot.index", "index"));
+
+  // Directory of the competition's CSV files.
+  public static final Path DATA_PATH =
+      FileSystems.getDefault().getPath(System.getProperty("homedepot.data", "data"));
+
+  // End of input markers between pipeline stages.
+  private static final Product END_OF_PRODUCTS = new Product();
+
+  private static final Document END_OF_DOCUMENTS = new Document();
 
   public static void main(String[] args) throws IOException {
     Indexing indexing = new Indexing();
     indexing.index();
+    // Or, store term vectors for faster per-document TF lookups at the cost of a larger index.
+    // indexing.index(new IndexingConfig()
+    //     .setTermVectorFields(new HashSet<>(Arrays.asList(Constant.FIELD_TITLE, Constant.FIELD_DESCRIPTION))));
+
+    // Or, apply changed products to the existing index.
+    // indexing.update("data/product_delta.csv", "data/attributes_delta.csv", new IndexingConfig());
   }
 
-  private void parse(
-      String filePath,
-      Map<Long, Product> products,
-      // Pass a lambda to modify the product.
-      BiFunction<Product, CSVRecord, Void> productModifier) throws IOException {
-    Reader reader = new InputStreamReader((new FileInputStream(filePath)));
-    CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT.withHeader());
-    for (CSVRecord record : csvParser) {
-      long id = Long.parseLong(record.get(Constant.CSV_PRODUCT_ID));
-      Product product = products.get(id);
-      if (product == null) {
-        product = new Product();
-        products.put(id, product);
+  // Parse `train.csv` and `test.csv` for product titles.
+  public void parseTitle(Map<Long, String> titles) throws IOException {
+    for (String fileName : Arrays.asList("train.csv", "test.csv")) {
+      try (CSVParser csvParser = openCSV(DATA_PATH.resolve(fileName).toString())) {
+        for (CSVRecord record : csvParser) {
+          titles.put(Long.parseLong(record.get(Constant.CSV_PRODUCT_ID)), record.get(Constant.CSV_TITLE));
+        }
       }
-      productModifier.apply(product, record);
     }
   }
 
-  // Parse `train.csv` and `test.csv` for product titles.
-  public void parseTitle(Map<Long, Product> products) throws IOException {
-    BiFunction<Product, CSVRecord, Void> modifier = (product, record) -> {
-      product.title = record.get(Constant.CSV_TITLE);
-      return null;
-    };
-
-    parse("data/train.csv", products, modifier);
-    parse("data/test.csv", products, modifier);
+  // Parse `attributes.csv` style rows, grouped by product.
+  public void parseAttributes(String filePath, Map<Long, Map<String, String>> attributes) throws IOException {
+    try (CSVParser csvParser = openCSV(filePath)) {
+      for (CSVRecord record : csvParser) {
+        String productID = record.get(Constant.CSV_PRODUCT_ID);
+        // The file has empty rows.
+        if (productID.isEmpty()) {
+          continue;
+        }
+        attributes.computeIfAbsent(Long.parseLong(productID), id -> new LinkedHashMap<>())
+            .put(record.get(Constant.CSV_ATTRIBUTE_NAME), record.get(Constant.CSV_ATTRIBUTE_VALUE));
+      }
+    }
   }
 
-  // Parse `product_descriptions.csv` for product descriptions.
-  public void parseDescription(Map<Long, Product> products) throws IOException {
-    BiFunction<Product, CSVRecord, Void> modifier = (product, record) -> {
-      product.description = record.get(Constant.CSV_DESCRIPTION);
-      return null;
-    };
-    parse("data/product_descriptions.csv", products, modifier);
+  private static CSVParser openCSV(String filePath) throws IOException {
+    Reader reader = new InputStreamReader((new FileInputStream(filePath)));
+    return new CSVParser(reader, CSVFormat.DEFAULT.withHeader());
   }
 
   public void index() throws IOException {
-    Map<Long, Product> products = new HashMap<>();
-    // 'Decorate' the product hashmap.
-    parseTitle(products);
-    parseDescription(products);
-    // TODO: Parse attributes.
+    index(new IndexingConfig());
+  }
+
+  /**
+   * Build the index from scratch.
+   * <p>
+   * Only titles are held in memory. Descriptions are streamed from `product_descriptions.csv` through three stages
+   * connected by bounded queues: parsing, building documents (several threads) and adding them to the index writer
+   * (several threads).
+   */
+  public void index(IndexingConfig config) throws IOException {
+    resetPeakHeap();
+    long startTime = System.nanoTime();
+
+    // Titles are spread over the query files, so they have to be collected first.
+    Map<Long, String> titles = new HashMap<>();
+    parseTitle(titles);
+    Map<Long, Map<String, String>> attributes = new HashMap<>();
+    if (config.getAttributesFilePath() != null) {
+      parseAttributes(config.getAttributesFilePath(), attributes);
+    }
 
     // Init Lucene stuff.
     Analyzer analyzer = new EnglishAnalyzer();
-    Directory directory = FSDirectory.open(INDEX_PATH);
-    IndexWriterConfig config = new IndexWriterConfig(analyzer);
-    IndexWriter writer = new IndexWriter(directory, config);
+    IndexWriterConfig writerConfig = new IndexWriterConfig(analyzer)
+        .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+        // Only a complete index replaces the existing one, see the commit below.
+        .setCommitOnClose(false)
+        .setRAMBufferSizeMB(config.getRAMBufferSizeMB())
+        .setMergePolicy(config.getMergePolicy());
+
+    BlockingQueue<Product> products = new ArrayBlockingQueue<>(config.getQueueCapacity());
+    BlockingQueue<Document> docs = new ArrayBlockingQueue<>(config.getQueueCapacity());
+    AtomicInteger runningBuilders = new AtomicInteger(config.getBuilderThreads());
+    AtomicLong docCount = new AtomicLong();
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(1 + config.getBuilderThreads() + config.getWriterThreads());
+    try (
+        Directory directory = FSDirectory.open(INDEX_PATH);
+        IndexWriter writer = new IndexWriter(directory, writerConfig)
+    ) {
+      boolean indexed = false;
+      try {
+        CompletionService<Void> stages = new ExecutorCompletionService<>(executor);
+
+        // Stage 1: parse descriptions and join them with titles.
+        stages.submit(() -> {
+          try (CSVParser csvParser = openCSV(DATA_PATH.resolve("product_descriptions.csv").toString())) {
+            for (CSVRecord record : csvParser) {
+              Product product = new Product();
+              product.id = Long.parseLong(record.get(Constant.CSV_PRODUCT_ID));
+              String title = titles.remove(product.id);
+              product.title = title == null ? "" : title;
+              product.description = record.get(Constant.CSV_DESCRIPTION);
+              product.attributes = attributes.getOrDefault(product.id, product.attributes);
+              products.put(product);
+            }
+          }
+          // Products without description.
+          for (Map.Entry<Long, String> entry : titles.entrySet()) {
+            Product product = new Product();
+            product.id = entry.getKey();
+            product.title = entry.getValue();
+            product.attributes = attributes.getOrDefault(product.id, product.attributes);
+            products.put(product);
+          }
+          for (int i = 0; i < config.getBuilderThreads(); ++i) {
+            products.put(END_OF_PRODUCTS);
+          }
+          return null;
+        });
+
+        // Stage 2: build documents, including their analyzed lengths.
+        for (int i = 0; i < config.getBuilderThreads(); ++i) {
+          stages.submit(() -> {
+            Product product;
+            while ((product = products.take()) != END_OF_PRODUCTS) {
+              docs.put(buildDocument(product, analyzer, config.getTermVectorFields()));
+            }
+            if (runningBuilders.decrementAndGet() == 0) {
+              for (int j = 0; j < config.getWriterThreads(); ++j) {
+                docs.put(END_OF_DOCUMENTS);
+              }
+            }
+            return null;
+          });
+        }
+
+        // Stage 3: write index.
+        for (int i = 0; i < config.getWriterThreads(); ++i) {
+          stages.submit(() -> {
+            Document doc;
+            while ((doc = docs.take()) != END_OF_DOCUMENTS) {
+              writer.addDocument(doc);
+              docCount.incrementAndGet();
+            }
+            return null;
+          });
+        }
+
+        int stageCount = 1 + config.getBuilderThreads() + config.getWriterThreads();
+        for (int i = 0; i < stageCount; ++i) {
+          awaitStage(stages);
+        }
+        indexed = true;
+      } finally {
+        // Unblocks the other stages if one failed, and waits for them so no writer thread is still adding documents.
+        executor.shutdownNow();
+        awaitTermination(executor);
+        if (!indexed) {
+          // Keeps the last committed index rather than a partial one.
+          writer.rollback();
+        }
+      }
+      writer.commit();
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.err.printf("Indexed %d documents in %.1f s (%.0f docs/sec), peak heap %d MB%n",
+        docCount.get(), seconds, docCount.get() / seconds, peakHeap() / (1024 * 1024));
+  }
+
+  /**
+   * Apply changed products to the existing index, touching only their documents.
+   * <p>
+   * `deltaFilePath` has a {@link Constant#CSV_PRODUCT_ID} column and any of {@link Constant#CSV_TITLE},
+   * {@link Constant#CSV_DESCRIPTION} and {@link Constant#CSV_DELETED}; fields without a column keep their indexed
+   * value. `attributesDeltaFilePath` has the columns of `attributes.csv` and replaces all attributes of the products
+   * it lists. Either path may be null. Products are upserted (or deleted) by ID, committing every
+   * {@link IndexingConfig#getCommitBatchSize()} documents. A product not in the index is only added with both a title
+   * and a description; other changes to it are skipped with a warning.
+   */
+  public void update(String deltaFilePath, String attributesDeltaFilePath, IndexingConfig config) throws IOException {
+    long startTime = System.nanoTime();
+
+    // Changes are small compared to the catalog, so they are collected first to merge both files.
+    Map<Long, ProductChange> changes = new LinkedHashMap<>();
+    if (deltaFilePath != null) {
+      try (CSVParser csvParser = openCSV(deltaFilePath)) {
+        Map<String, Integer> header = csvParser.getHeaderMap();
+        for (CSVRecord record : csvParser) {
+          ProductChange change =
+              changes.computeIfAbsent(Long.parseLong(record.get(Constant.CSV_PRODUCT_ID)), id -> new ProductChange());
+          if (header.containsKey(Constant.CSV_TITLE)) {
+            change.title = record.get(Constant.CSV_TITLE);
+          }
+          if (header.containsKey(Constant.CSV_DESCRIPTION)) {
+            change.description = record.get(Constant.CSV_DESCRIPTION);
+          }
+          if (header.containsKey(Constant.CSV_DELETED)) {
+            String deleted = record.get(Constant.CSV_DELETED);
+            change.deleted = deleted.equals("1") || deleted.equalsIgnoreCase("true");
+          }
+        }
+      }
+    }
+    if (attributesDeltaFilePath != null) {
+      Map<Long, Map<String, String>> attributes = new LinkedHashMap<>();
+      parseAttributes(attributesDeltaFilePath, attributes);
+      for (Map.Entry<Long, Map<String, String>> entry : attributes.entrySet()) {
+        changes.computeIfAbsent(entry.getKey(), id -> new ProductChange()).attributes = entry.getValue();
+      }
+    }
+
+    Analyzer analyzer = new EnglishAnalyzer();
+    IndexWriterConfig writerConfig = new IndexWriterConfig(analyzer)
+        .setOpenMode(IndexWriterConfig.OpenMode.APPEND)
+        .setRAMBufferSizeMB(config.getRAMBufferSizeMB())
+        .setMergePolicy(config.getMergePolicy());
+    int added = 0, updated = 0, deleted = 0, skipped = 0, uncommitted = 0;
+    try (
+        Directory directory = FSDirectory.open(INDEX_PATH);
+        // Stored fields of the last commit, to fill in the unchanged fields.
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexWriter writer = new IndexWriter(directory, writerConfig)
+    ) {
+      // Only the changed products are looked up, so the time follows the size of the change, not of the catalog.
+      for (Map.Entry<Long, ProductChange> entry : changes.entrySet()) {
+        long productID = entry.getKey();
+        ProductChange change = entry.getValue();
+        int docID = DocIDResolver.lookup(reader, productID);
+        Term idTerm = new Term(Constant.FIELD_ID, String.valueOf(productID));
+
+        if (change.deleted) {
+          if (docID == DocIDResolver.NOT_FOUND) {
+            continue;
+          }
+          writer.deleteDocuments(idTerm);
+          ++deleted;
+        } else if (docID == DocIDResolver.NOT_FOUND && (change.title == null || change.description == null)) {
+          // Would add a document with an empty title or description.
+          System.err.printf("Skipping product %d: not in the index, and no title and description to add it with%n",
+              productID);
+          ++skipped;
+          continue;
+        } else {
+          Product product = docID == DocIDResolver.NOT_FOUND ? new Product() : toProduct(reader.document(docID));
+          product.id = productID;
+          change.applyTo(product);
+          writer.updateDocument(idTerm, buildDocument(product, analyzer, config.getTermVectorFields()));
+          if (docID == DocIDResolver.NOT_FOUND) {
+            ++added;
+          } else {
+            ++updated;
+          }
+        }
+
+        if (++uncommitted >= config.getCommitBatchSize()) {
+          writer.commit();
+          uncommitted = 0;
+        }
+      }
+      writer.commit();
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.err.printf("Touched %d documents (%d added, %d updated, %d deleted, %d unknown skipped) in %.1f s%n",
+        added + updated + deleted, added, updated, deleted, skipped, seconds);
+  }
+
+  private static Product toProduct(Document doc) {
+    Product product = new Product();
+    product.title = doc.get(Constant.FIELD_TITLE);
+    product.description = doc.get(Constant.FIELD_DESCRIPTION);
+    for (String attribute : doc.getValues(Constant.FIELD_ATTRIBUTES)) {
+      int separator = attribute.indexOf('\t');
+      product.attributes.put(attribute.substring(0, separator), attribute.substring(separator + 1));
+    }
+    return product;
+  }
+
+  // Waits for stopped stages; doesn't throw, as it runs on the way out of a failure too.
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        System.err.println("Indexing stages did not stop within a minute");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
+  private static void awaitStage(CompletionService<Void> stages) throws IOException {
+    try {
+      stages.take().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while indexing", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static Document buildDocument(Product product, Analyzer analyzer, Set<String> termVectorFields)
+      throws IOException {
     Document doc = new Document();
     // Do not analyze ID.
-    StringField idField = new StringField(Constant.FIELD_ID, "", Field.Store.YES);
-    doc.add(idField);
+    doc.add(new StringField(Constant.FIELD_ID, String.valueOf(product.id), Field.Store.YES));
+    // Numeric copy of ID for building the product ID to doc ID table at search time.
+    doc.add(new NumericDocValuesField(Constant.FIELD_ID, product.id));
     // Analyze title and description.
-    TextField titleField = new TextField(Constant.FIELD_TITLE, "", Field.Store.YES);
-    doc.add(titleField);
-    TextField descriptionField = new TextField(Constant.FIELD_DESCRIPTION, "", Field.Store.YES);
-    doc.add(descriptionField);
-    // Write index.
-    for (Map.Entry<Long, Product> entry : products.entrySet()) {
-      Long id = entry.getKey();
-      Product product = entry.getValue();
-      idField.setStringValue(id.toString());
-      titleField.setStringValue(product.title);
-      descriptionField.setStringValue(product.description);
-      writer.addDocument(doc);
-    }
-    writer.close();
+    doc.add(createTextField(Constant.FIELD_TITLE, product.title, termVectorFields));
+    doc.add(createTextField(Constant.FIELD_DESCRIPTION, product.description, termVectorFields));
+    // One value per attribute, name and value separated by a tab.
+    for (Map.Entry<String, String> attribute : product.attributes.entrySet()) {
+      doc.add(new TextField(Constant.FIELD_ATTRIBUTES, attribute.getKey() + '\t' + attribute.getValue(), Field.Store.YES));
+    }
+    // Exact token counts, as norms only keep a lossy encoding of the length.
+    doc.add(new NumericDocValuesField(DocLengths.lengthField(Constant.FIELD_TITLE),
+        countTokens(analyzer, Constant.FIELD_TITLE, product.title)));
+    doc.add(new NumericDocValuesField(DocLengths.lengthField(Constant.FIELD_DESCRIPTION),
+        countTokens(analyzer, Constant.FIELD_DESCRIPTION, product.description)));
+    return doc;
+  }
+
+  // Same count as the indexing chain sees for the field.
+  private static int countTokens(Analyzer analyzer, String field, String text) throws IOException {
+    int count = 0;
+    try (TokenStream stream = analyzer.tokenStream(field, text)) {
+      stream.reset();
+      while (stream.incrementToken()) {
+        ++count;
+      }
+      stream.end();
+    }
+    return count;
+  }
+
+  private static Field createTextField(String name, String value, Set<String> termVectorFields) {
+    if (!termVectorFields.contains(name)) {
+      return new TextField(name, value, Field.Store.YES);
+    }
+    FieldType type = new FieldType(TextField.TYPE_STORED);
+    type.setStoreTermVectors(true);
+    type.freeze();
+    return new Field(name, value, type);
+  }
+
+  private static void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  // Sum of the peaks of all heap pools, an upper bound of the peak heap usage.
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  // Fields of a product in a delta file, null where unchanged.
+  private static class ProductChange {
+    String title;
+    String description;
+    Map<String, String> attributes;
+    boolean deleted;
+
+    void applyTo(Product product) {
+      if (title != null) {
+        product.title = title;
+      }
+      if (description != null) {
+        product.description = description;
+      }
+      if (attributes != null) {
+        product.attributes = attributes;
+      }
+    }
   }
 }
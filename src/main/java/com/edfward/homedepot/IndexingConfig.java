@@ -0,0 +1,125 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Settings of {@link Indexing}. Setters return this config, like {@link IndexWriterConfig}.
+ */
+public class IndexingConfig {
+  private Set<String> termVectorFields = Collections.emptySet();
+
+  private double ramBufferSizeMB = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+
+  private MergePolicy mergePolicy = new TieredMergePolicy();
+
+  private int builderThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private int writerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+  private int queueCapacity = 1024;
+
+  private String attributesFilePath;
+
+  private int commitBatchSize = 10_000;
+
+  public Set<String> getTermVectorFields() {
+    return termVectorFields;
+  }
+
+  /** Analyzed fields to also store term vectors for. */
+  public IndexingConfig setTermVectorFields(Set<String> termVectorFields) {
+    this.termVectorFields = new HashSet<>(termVectorFields);
+    return this;
+  }
+
+  public double getRAMBufferSizeMB() {
+    return ramBufferSizeMB;
+  }
+
+  /** See {@link IndexWriterConfig#setRAMBufferSizeMB(double)}. */
+  public IndexingConfig setRAMBufferSizeMB(double ramBufferSizeMB) {
+    this.ramBufferSizeMB = ramBufferSizeMB;
+    return this;
+  }
+
+  public MergePolicy getMergePolicy() {
+    return mergePolicy;
+  }
+
+  /** See {@link IndexWriterConfig#setMergePolicy(MergePolicy)}. */
+  public IndexingConfig setMergePolicy(MergePolicy mergePolicy) {
+    this.mergePolicy = mergePolicy;
+    return this;
+  }
+
+  public int getBuilderThreads() {
+    return builderThreads;
+  }
+
+  /** Threads turning parsed products into documents. */
+  public IndexingConfig setBuilderThreads(int builderThreads) {
+    if (builderThreads < 1) {
+      throw new IllegalArgumentException("Need at least one builder thread, got " + builderThreads);
+    }
+    this.builderThreads = builderThreads;
+    return this;
+  }
+
+  public int getWriterThreads() {
+    return writerThreads;
+  }
+
+  /** Threads adding documents to the shared index writer. */
+  public IndexingConfig setWriterThreads(int writerThreads) {
+    if (writerThreads < 1) {
+      throw new IllegalArgumentException("Need at least one writer thread, got " + writerThreads);
+    }
+    this.writerThreads = writerThreads;
+    return this;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /** Capacity of each queue between pipeline stages. */
+  public IndexingConfig setQueueCapacity(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be positive, got " + queueCapacity);
+    }
+    this.queueCapacity = queueCapacity;
+    return this;
+  }
+
+  public String getAttributesFilePath() {
+    return attributesFilePath;
+  }
+
+  /**
+   * `attributes.csv` to index with a full build, null (the default) to skip attributes. Unlike descriptions,
+   * attributes are held in memory during the build.
+   */
+  public IndexingConfig setAttributesFilePath(String attributesFilePath) {
+    this.attributesFilePath = attributesFilePath;
+    return this;
+  }
+
+  public int getCommitBatchSize() {
+    return commitBatchSize;
+  }
+
+  /** Number of changed documents after which an incremental update commits. */
+  public IndexingConfig setCommitBatchSize(int commitBatchSize) {
+    if (commitBatchSize < 1) {
+      throw new IllegalArgumentException("Commit batch size must be positive, got " + commitBatchSize);
+    }
+    this.commitBatchSize = commitBatchSize;
+    return this;
+  }
+}
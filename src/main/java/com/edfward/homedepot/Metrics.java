@@ -0,0 +1,176 @@
+package com.edfward.homedepot;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and counters of the hot paths, off unless {@value #ENABLED_PROPERTY}=true.
+ * <p>
+ * Call sites check {@link #ENABLED} before reading the clock or counting. It is a constant, so when metrics are off
+ * the JIT drops the checks along with everything behind them. While a {@link Sampler} is running, totals and rates
+ * are written every {@value #INTERVAL_PROPERTY} seconds (10 by default) to stderr, or appended to
+ * {@value #FILE_PROPERTY} if set, and summarized when it is closed.
+ */
+final class Metrics {
+  static final String ENABLED_PROPERTY = "homedepot.metrics";
+
+  static final String INTERVAL_PROPERTY = "homedepot.metrics.interval";
+
+  static final String FILE_PROPERTY = "homedepot.metrics.file";
+
+  static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  // Rows done by the sampled task.
+  static final String ROWS = "rows";
+
+  private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+  private Metrics() {
+  }
+
+  /** The histogram called `name`, created on first use. */
+  static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  /** The counter called `name`, created on first use. */
+  static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  /** Reset all metrics and start writing samples periodically, until the sampler is closed. */
+  static Sampler startSampling(String task) throws IOException {
+    counters.values().forEach(LongAdder::reset);
+    histograms.values().forEach(Histogram::reset);
+    String file = System.getProperty(FILE_PROPERTY);
+    PrintStream out = file == null ? System.err : new PrintStream(new FileOutputStream(file, true), true);
+    return new Sampler(task, out, Long.getLong(INTERVAL_PROPERTY, 10));
+  }
+
+  /**
+   * Latencies in power-of-two nanosecond buckets. Percentiles are reported as the upper bound of their bucket, so
+   * within a factor of two.
+   */
+  static final class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    /** Record `count` events taking `nanos` in total, e.g. a batch of rows. */
+    void record(long nanos, int count) {
+      if (count <= 0) {
+        return;
+      }
+      long each = Math.max(1, nanos / count);
+      buckets.addAndGet(63 - Long.numberOfLeadingZeros(each), count);
+      this.count.add(count);
+      totalNanos.add(nanos);
+    }
+
+    void record(long nanos) {
+      record(nanos, 1);
+    }
+
+    long count() {
+      return count.sum();
+    }
+
+    private void reset() {
+      for (int i = 0; i < buckets.length(); ++i) {
+        buckets.set(i, 0);
+      }
+      count.reset();
+      totalNanos.reset();
+    }
+
+    // Upper bound in nanoseconds of the bucket holding the `quantile` event.
+    long percentile(double quantile) {
+      long rank = (long) Math.ceil(quantile * count());
+      long seen = 0;
+      for (int i = 0; i < buckets.length(); ++i) {
+        seen += buckets.get(i);
+        if (seen >= rank && seen > 0) {
+          return (2L << i) - 1;
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public String toString() {
+      long n = count();
+      return String.format("count=%d, mean=%.1f us, p50<%.1f us, p90<%.1f us, p99<%.1f us",
+          n, n == 0 ? 0.0 : totalNanos.sum() / 1e3 / n,
+          percentile(0.5) / 1e3, percentile(0.9) / 1e3, percentile(0.99) / 1e3);
+    }
+  }
+
+  static final class Sampler implements Closeable {
+    private final String task;
+
+    private final PrintStream out;
+
+    private final ScheduledExecutorService executor;
+
+    private final long startTime = System.nanoTime();
+
+    private long lastTime = startTime;
+
+    private long lastRows;
+
+    private Sampler(String task, PrintStream out, long intervalSeconds) {
+      this.task = task;
+      this.out = out;
+      this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-sampler");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.scheduleAtFixedRate(this::sample, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void sample() {
+      long now = System.nanoTime();
+      long rows = counter(ROWS).sum();
+      out.printf("%s: %.0f s, %d rows, %.1f rows/sec, %s%n", task, (now - startTime) / 1e9, rows,
+          (rows - lastRows) / ((now - lastTime) / 1e9), new TreeMap<>(counters));
+      lastTime = now;
+      lastRows = rows;
+    }
+
+    /** Stop sampling and write the summary. */
+    @Override
+    public synchronized void close() {
+      executor.shutdownNow();
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+      long rows = counter(ROWS).sum();
+      out.printf("%s: done, %d rows in %.1f s, %.1f rows/sec%n", task, rows, seconds, rows / seconds);
+      for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+        out.printf("  %s: %d%n", counter.getKey(), counter.getValue().sum());
+      }
+      for (Map.Entry<String, Histogram> histogram : new TreeMap<>(histograms).entrySet()) {
+        if (histogram.getValue().count() > 0) {
+          out.printf("  %s: %s%n", histogram.getKey(), histogram.getValue());
+        }
+      }
+      if (out != System.err) {
+        out.close();
+      }
+    }
+  }
+}
@@ -1,5 +1,9 @@
 package com.edfward.homedepot;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
@@ -7,7 +11,6 @@ import org.apache.commons.csv.CSVRecord;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
@@ -15,34 +18,87 @@ import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.BM25Similarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class NaiveScoring {
+  // Ranks from here on score like products not matching at all, as they used to fall out of the top hits.
+  private static final int RANK_LIMIT = 1000;
+
+  // Search terms whose top ranks are kept; each takes up to `RANK_LIMIT` pairs of ints.
+  private static final int RANKINGS_CACHE_SIZE = 10_000;
+
+  private static final LongAdder ROWS = Metrics.counter(Metrics.ROWS);
+
+  private static final Metrics.Histogram SEARCH_LATENCY = Metrics.histogram("search");
+
   private IndexSearcher searcher;
 
   private Analyzer analyzer;
 
+  private DocIDResolver idResolver;
+
+  private final int threads;
+
+  private final boolean groupBySearchTerm;
+
+  // Top ranks of the results of each search term, so rows repeating a term don't search again.
+  private final Cache<String, TopRanks> rankings = CacheBuilder.newBuilder()
+      .maximumSize(RANKINGS_CACHE_SIZE)
+      .recordStats()
+      .build();
+
   public NaiveScoring() throws IOException {
-    Directory directory = FSDirectory.open(Indexing.INDEX_PATH);
-    DirectoryReader indexReader = DirectoryReader.open(directory);
+    this(false);
+  }
+
+  public NaiveScoring(boolean groupBySearchTerm) throws IOException {
+    this(1, groupBySearchTerm);
+  }
+
+  /**
+   * @param threads           number of rows (or search terms) to score concurrently, and of segments to search in
+   *                          parallel. Output order always follows the input.
+   * @param groupBySearchTerm whether to load all rows and search once per distinct search term, looking up the
+   *                          rank of every product asked for with that term in the same results.
+   */
+  public NaiveScoring(int threads, boolean groupBySearchTerm) throws IOException {
+    this(IndexAccess.open(), threads, groupBySearchTerm);
+  }
+
+  // Scores over a reader the caller opened, and closes.
+  NaiveScoring(DirectoryReader indexReader, int threads, boolean groupBySearchTerm) throws IOException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread, got " + threads);
+    }
+    this.threads = threads;
+    this.groupBySearchTerm = groupBySearchTerm;
     searcher = new IndexSearcher(indexReader);
+    idResolver = DocIDResolver.build(indexReader);
     searcher.setSimilarity(new BM25Similarity());
     analyzer = new EnglishAnalyzer();
   }
 
   public static void main(String[] args) throws IOException, ParseException {
-    NaiveScoring scoring = new NaiveScoring();
+    NaiveScoring scoring = new NaiveScoring(Runtime.getRuntime().availableProcessors(), true);
     scoring.score("data/test.csv", "data/result-naive-scoring.csv");
   }
 
@@ -51,29 +107,127 @@ public class NaiveScoring {
     CSVParser csvParser = new CSVParser(reader, CSVFormat.DEFAULT.withHeader());
     boolean hasRelevance = csvParser.getHeaderMap().containsKey(Constant.CSV_RELEVANCE);
 
+    // Searches of the row workers run over the segments on their own pool, so they never wait on each other.
+    boolean parallelSegments = threads > 1 && searcher.getIndexReader().leaves().size() > 1;
+    ExecutorService segmentExecutor = parallelSegments ? Executors.newFixedThreadPool(threads) : null;
+    Metrics.Sampler sampler = Metrics.ENABLED ? Metrics.startSampling("NaiveScoring") : null;
     try (
         FileWriter writer = new FileWriter(outputFilePath);
         CSVPrinter csvPrinter = new CSVPrinter(writer, CSVFormat.DEFAULT)
     ) {
+      IndexSearcher rowSearcher = segmentExecutor == null ? searcher : parallelSearcher(segmentExecutor);
+
       // Print header.
       csvPrinter.printRecord(new Object[]{"id", "relevance"});
 
-      for (CSVRecord record : csvParser) {
-        String id = record.get("id");  // Row ID.
-        Long productID = Long.parseLong(record.get(Constant.CSV_PRODUCT_ID));
-        String terms = record.get(Constant.CSV_SEARCH_TERM);
-        int score = scoreTerms(productID, terms);
-        csvPrinter.printRecord(new Object[]{id, score});
+      StartupTimer timer = new StartupTimer("NaiveScoring");
+      if (!groupBySearchTerm) {
+        Iterator<Callable<Object[]>> rowTasks = Iterators.transform(csvParser.iterator(), record -> () -> {
+          String id = record.get("id");  // Row ID.
+          Long productID = Long.parseLong(record.get(Constant.CSV_PRODUCT_ID));
+          String terms = record.get(Constant.CSV_SEARCH_TERM);
+          return new Object[]{id, scoreTerms(rowSearcher, productID, terms)};
+        });
+        OrderedTasks.run(threads, rowTasks, row -> {
+          csvPrinter.printRecord(row);
+          timer.rowsDone(1);
+          if (Metrics.ENABLED) {
+            ROWS.increment();
+          }
+        });
+        System.err.println("Search term rankings cache: " + rankings.stats());
+        return;
+      }
+
+      // Rows with identical search terms, in order of first appearance. Terms are not lower-cased, as the query
+      // parser treats upper-case AND/OR/NOT as operators.
+      List<CSVRecord> records = csvParser.getRecords();
+      Map<String, List<Integer>> groups = new LinkedHashMap<>();
+      for (int i = 0; i < records.size(); ++i) {
+        groups.computeIfAbsent(records.get(i).get(Constant.CSV_SEARCH_TERM), k -> new ArrayList<>()).add(i);
+      }
+      int[] scores = new int[records.size()];
+      Iterator<Callable<Integer>> groupTasks = Iterators.transform(groups.entrySet().iterator(), group -> () -> {
+        List<Integer> rows = group.getValue();
+        int[] internalIDs = new int[rows.size()];
+        for (int i = 0; i < internalIDs.length; ++i) {
+          Long productID = Long.parseLong(records.get(rows.get(i)).get(Constant.CSV_PRODUCT_ID));
+          internalIDs[i] = idResolver.getExisting(productID);
+        }
+        int[] ranks = ranks(rowSearcher, buildQuery(group.getKey()), internalIDs);
+        for (int i = 0; i < internalIDs.length; ++i) {
+          scores[rows.get(i)] = scoreRank(ranks[i]);
+        }
+        return rows.size();
+      });
+      OrderedTasks.run(threads, groupTasks, rows -> {
+        timer.rowsDone(rows);
+        if (Metrics.ENABLED) {
+          ROWS.add(rows);
+        }
+      });
+      for (int i = 0; i < records.size(); ++i) {
+        csvPrinter.printRecord(new Object[]{records.get(i).get("id"), scores[i]});
+      }
+    } finally {
+      if (sampler != null) {
+        sampler.close();
+      }
+      if (segmentExecutor != null) {
+        segmentExecutor.shutdownNow();
       }
     }
   }
 
-  private int scoreTerms(long productID, String terms) throws ParseException, IOException {
-    String escapedTerms = QueryParser.escape(terms);
+  // Forget the top ranks of earlier searches, so the next run searches every term again.
+  void clearRankings() {
+    rankings.invalidateAll();
+  }
+
+  // Searcher over the same reader that searches segments on `executor`.
+  private IndexSearcher parallelSearcher(ExecutorService executor) {
+    IndexSearcher parallel = new IndexSearcher(searcher.getIndexReader(), executor);
+    parallel.setSimilarity(searcher.getSimilarity(true));
+    return parallel;
+  }
 
+  private int scoreTerms(IndexSearcher searcher, long productID, String terms) throws ParseException, IOException {
     // Find internal document ID.
-    Query idQuery = new TermQuery(new Term(Constant.FIELD_ID, String.valueOf(productID)));
-    int internalID = searcher.search(idQuery, 1).scoreDocs[0].doc;
+    int internalID = idResolver.getExisting(productID);
+
+    return scoreRank(topRanks(searcher, terms).rankOf(internalID));
+  }
+
+  // Top ranks of the results of the search terms, searched on first use.
+  private TopRanks topRanks(IndexSearcher searcher, String terms) throws ParseException, IOException {
+    try {
+      return rankings.get(terms, () -> {
+        Query query = buildQuery(terms);
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        TopDocs topDocs = searcher.search(query, RANK_LIMIT);
+        if (Metrics.ENABLED) {
+          SEARCH_LATENCY.record(System.nanoTime() - start);
+        }
+        return new TopRanks(topDocs.scoreDocs, topDocs.totalHits);
+      });
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, ParseException.class);
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  // Ranks of the documents in the results of the query, counted up to `RANK_LIMIT`.
+  private int[] ranks(IndexSearcher searcher, Query query, int[] internalIDs) throws IOException {
+    long start = Metrics.ENABLED ? System.nanoTime() : 0;
+    int[] ranks = RankCollector.ranks(searcher, query, internalIDs, RANK_LIMIT);
+    if (Metrics.ENABLED) {
+      SEARCH_LATENCY.record(System.nanoTime() - start);
+    }
+    return ranks;
+  }
+
+  private Query buildQuery(String terms) throws ParseException {
+    String escapedTerms = QueryParser.escape(terms);
 
     // Search by terms.
     QueryParser titleParser = new QueryParser(Constant.FIELD_TITLE, analyzer);
@@ -81,25 +235,16 @@ public class NaiveScoring {
     QueryParser descriptionParser = new QueryParser(Constant.FIELD_DESCRIPTION, analyzer);
     Query descriptionQuery = descriptionParser.parse(escapedTerms);
 
-    BooleanQuery query = new BooleanQuery.Builder()
+    return new BooleanQuery.Builder()
         .add(titleQuery, BooleanClause.Occur.SHOULD)
         .add(descriptionQuery, BooleanClause.Occur.SHOULD)
         .setMinimumNumberShouldMatch(1)
         .build();
+  }
 
-    TopDocs docs = searcher.search(query, 1000);
-    int rank = 0;
-    boolean found = false;
-    for (ScoreDoc scoreDoc : docs.scoreDocs) {
-      if (internalID == scoreDoc.doc) {
-        found = true;
-        break;
-      }
-      rank++;
-    }
-
-    // Heuristic based scoring.
-    if (!found) {
+  // Heuristic based scoring.
+  private static int scoreRank(int rank) {
+    if (rank == RankCollector.NOT_FOUND || rank >= RANK_LIMIT) {
       return 1;
     } else if (rank < 100) {
       return 3;
@@ -107,4 +252,39 @@ public class NaiveScoring {
       return 2;
     }
   }
+
+  /** Ranks of the top hits of a search, by document ID. */
+  private static final class TopRanks {
+    // Document IDs of the top hits, sorted, and the rank of each.
+    private final int[] docIDs;
+
+    private final int[] ranks;
+
+    // Whether documents outside the top hits match too.
+    private final boolean truncated;
+
+    TopRanks(ScoreDoc[] hits, int totalHits) {
+      Integer[] order = new Integer[hits.length];
+      for (int i = 0; i < order.length; ++i) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Integer.compare(hits[a].doc, hits[b].doc));
+      docIDs = new int[hits.length];
+      ranks = new int[hits.length];
+      for (int i = 0; i < order.length; ++i) {
+        docIDs[i] = hits[order[i]].doc;
+        ranks[i] = order[i];
+      }
+      truncated = totalHits > hits.length;
+    }
+
+    // Same as RankCollector.ranks: `RANK_LIMIT` past the top hits, NOT_FOUND if not matching at all.
+    int rankOf(int docID) {
+      int i = Arrays.binarySearch(docIDs, docID);
+      if (i >= 0) {
+        return ranks[i];
+      }
+      return truncated ? RANK_LIMIT : RankCollector.NOT_FOUND;
+    }
+  }
 }
@@ -0,0 +1,65 @@
+package com.edfward.homedepot;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.lucene.queryparser.classic.ParseException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Runs independent tasks on a worker pool and consumes their results in task order. */
+final class OrderedTasks {
+  // Tasks in flight per worker, bounds memory while keeping workers busy.
+  private static final int TASKS_PER_WORKER = 16;
+
+  private OrderedTasks() {
+  }
+
+  /**
+   * Run `tasks` on a pool of `threads` workers, or on the calling thread if there is only one, and hand the results
+   * to `sink` in task order.
+   */
+  static <T> void run(int threads, Iterator<Callable<T>> tasks, Sink<T> sink) throws IOException, ParseException {
+    ExecutorService executor = threads == 1
+        ? MoreExecutors.newDirectExecutorService()
+        : Executors.newFixedThreadPool(threads);
+    try {
+      Deque<Future<T>> pending = new ArrayDeque<>();
+      while (tasks.hasNext()) {
+        pending.add(executor.submit(tasks.next()));
+        if (pending.size() >= threads * TASKS_PER_WORKER) {
+          sink.accept(getResult(pending.poll()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        sink.accept(getResult(pending.poll()));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException, ParseException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a task", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.propagateIfPossible(cause, IOException.class, ParseException.class);
+      throw new RuntimeException(cause);
+    }
+  }
+
+  interface Sink<T> {
+    void accept(T result) throws IOException;
+  }
+}
@@ -1,15 +1,21 @@
 package com.edfward.homedepot;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Occurrences of the lower-cased search terms in the lower-cased text of a field.
+ * <p>
+ * Counted in the stored field, through {@link FeatureBase#storedFieldCache}, or, with {@link FieldTexts#ENABLED}, in
+ * the text kept by {@link FieldTexts}, which gives the same values without loading fields.
+ */
 class OverlapFeature extends FieldFeatureBase implements Feature {
   private final String field;
 
@@ -19,20 +25,29 @@ class OverlapFeature extends FieldFeatureBase implements Feature {
 
   @Override
   public float getValue(Long productID, String searchTerms) throws IOException, ParseException {
-    Query idQuery = new TermQuery(new Term(Constant.FIELD_ID, productID.toString()));
-    TopDocs docs = searcher.search(idQuery, 1);
-
-    if (docs.totalHits != 1) {
-      throw new AssertionError("Couldn't find document with ID " + productID);
+    if (fieldTexts != null) {
+      return fieldTexts.countMatches(field, getDocID(productID), FieldTexts.normalize(searchTerms));
     }
 
-    Document doc = searcher.doc(docs.scoreDocs[0].doc);
-
     searchTerms = searchTerms.toLowerCase();
-    String text = doc.get(field).toLowerCase();
+    String text = storedFieldCache.get(getDocID(productID), field).toLowerCase();
     return StringUtils.countMatches(text, searchTerms);
   }
 
+  @Override
+  public float[] getValues(QueryContext[] rows) throws IOException, ParseException {
+    if (fieldTexts == null || rows.length == 0) {
+      return Feature.super.getValues(rows);
+    }
+    // The search terms are shared, so they are normalized once.
+    byte[] pattern = FieldTexts.normalize(rows[0].getSearchTerms());
+    float[] values = new float[rows.length];
+    for (int i = 0; i < rows.length; ++i) {
+      values[i] = fieldTexts.countMatches(field, rows[i].getDocID(), pattern);
+    }
+    return values;
+  }
+
   @Override
   protected String getField() {
     return field;
@@ -43,3 +58,106 @@ class OverlapFeature extends FieldFeatureBase implements Feature {
     return "overlap_" + field;
   }
 }
+
+
+/**
+ * Occurrences of the analyzed search terms as a phrase of a field, from the term positions in the index.
+ * <p>
+ * Like {@link OverlapFeature}, but matching stemmed tokens rather than raw text, so e.g. "drill bits" is found in
+ * "Drill Bit"; stop words only need to leave a gap of the same size.
+ */
+class PositionalOverlapFeature extends FieldFeatureBase implements Feature {
+  private final String field;
+
+  PositionalOverlapFeature(String field) {
+    this.field = field;
+  }
+
+  @Override
+  public float getValue(Long productID, String searchTerms) throws IOException, ParseException {
+    return getValue(new QueryContext(productID, searchTerms));
+  }
+
+  @Override
+  public float getValue(QueryContext context) throws IOException {
+    return getValues(new QueryContext[]{context})[0];
+  }
+
+  // One forward pass over the postings of the phrase terms, as the rows are sorted by document ID.
+  @Override
+  public float[] getValues(QueryContext[] rows) throws IOException {
+    float[] values = new float[rows.length];
+    QueryContext.Phrase phrase = rows.length == 0 ? null : rows[0].getPhrase(field);
+    if (phrase == null || phrase.terms.length == 0) {
+      return values;
+    }
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    LeafReaderContext leaf = null;
+    PostingsEnum[] postings = new PostingsEnum[phrase.terms.length];
+    // Positions of each phrase term in the current document, ascending.
+    int[][] positions = new int[phrase.terms.length][8];
+    int[] freqs = new int[phrase.terms.length];
+    for (int r = 0; r < rows.length; ++r) {
+      int docID = rows[r].getDocID();
+      if (r > 0 && docID == rows[r - 1].getDocID()) {
+        values[r] = values[r - 1];
+        continue;
+      }
+      if (leaf == null || docID >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+        for (int i = 0; i < postings.length; ++i) {
+          postings[i] = leaf.reader().postings(phrase.terms[i], PostingsEnum.POSITIONS);
+        }
+      }
+      values[r] = count(phrase, postings, docID - leaf.docBase, positions, freqs);
+    }
+    return values;
+  }
+
+  // Starts of the phrase in the document, where every term is at its offset from the first.
+  private static int count(QueryContext.Phrase phrase, PostingsEnum[] postings, int leafDocID, int[][] positions,
+                           int[] freqs) throws IOException {
+    for (int i = 0; i < postings.length; ++i) {
+      if (postings[i] == null) {
+        return 0;
+      }
+      int current = postings[i].docID();
+      if (current < leafDocID) {
+        current = postings[i].advance(leafDocID);
+      }
+      if (current != leafDocID) {
+        return 0;
+      }
+      freqs[i] = postings[i].freq();
+      if (positions[i].length < freqs[i]) {
+        positions[i] = new int[freqs[i]];
+      }
+      for (int j = 0; j < freqs[i]; ++j) {
+        positions[i][j] = postings[i].nextPosition();
+      }
+    }
+
+    int count = 0;
+    for (int j = 0; j < freqs[0]; ++j) {
+      int start = positions[0][j] - phrase.positions[0];
+      boolean matches = true;
+      for (int i = 1; i < postings.length && matches; ++i) {
+        matches = Arrays.binarySearch(positions[i], 0, freqs[i], start + phrase.positions[i]) >= 0;
+      }
+      if (matches) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  protected String getField() {
+    return field;
+  }
+
+  @Override
+  public String getName() {
+    return "overlap_positions_" + field;
+  }
+}
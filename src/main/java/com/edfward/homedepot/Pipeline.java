@@ -0,0 +1,249 @@
+package com.edfward.homedepot;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scores a query file with a {@link RelevanceModel} in one pass, writing `id,relevance` records without any feature
+ * file in between.
+ * <p>
+ * Four stages run concurrently, handing batches of rows on through bounded queues: reading query records, computing
+ * their features on {@value #THREADS_PROPERTY} workers, predicting relevance, and writing it. A stage that gets ahead
+ * blocks on a full queue, so memory stays flat however long the input is; output follows input order.
+ */
+public class Pipeline {
+  static final String BATCH_PROPERTY = "homedepot.pipeline.batch";
+
+  static final String THREADS_PROPERTY = "homedepot.pipeline.threads";
+
+  static final String OUTPUT_ID = "id";
+
+  // Batches waiting between two stages.
+  private static final int QUEUE_BATCHES = 4;
+
+  // Marks the end of the input in a queue.
+  private static final Batch END = new Batch(Collections.emptyList());
+
+  private final RelevanceModel model;
+
+  private final FeatureEvaluator evaluator;
+
+  private final int batchSize;
+
+  private final int threads;
+
+  Pipeline(RelevanceModel model, int batchSize, int threads) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be positive, got " + batchSize);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread, got " + threads);
+    }
+    this.model = model;
+    this.evaluator = new FeatureEvaluator(FeatureExtraction.featuresNamed(model.getFeatureNames()));
+    this.batchSize = batchSize;
+    this.threads = threads;
+  }
+
+  public static void main(String[] args) throws IOException {
+    String input = args.length > 0 ? args[0] : "data/test.csv";
+    String output = args.length > 1 ? args[1] : "data/submission.csv";
+    RelevanceModel model = RelevanceModel.load(
+        Paths.get(System.getProperty(ScoringService.MODEL_PROPERTY, "data/model")));
+    Pipeline pipeline = new Pipeline(model,
+        Integer.getInteger(BATCH_PROPERTY, 512),
+        Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+    long startTime = System.nanoTime();
+    long rows = pipeline.run(input, output);
+    System.err.printf("Scored %d rows of %s into %s in %d ms%n",
+        rows, input, output, (System.nanoTime() - startTime) / 1_000_000);
+  }
+
+  /**
+   * Score the rows of the query file at `inputPath`, which must have an `id` column; returns the number of rows.
+   * Output goes to a temporary file next to `outputPath`, moved into place once every row is written, so a failed run
+   * leaves no partial result.
+   */
+  long run(String inputPath, String outputPath) throws IOException {
+    Path tempOutput = Paths.get(outputPath + ".tmp");
+    boolean written = false;
+    try {
+      long rows = run(inputPath, tempOutput);
+      Files.move(tempOutput, Paths.get(outputPath), StandardCopyOption.REPLACE_EXISTING);
+      written = true;
+      return rows;
+    } finally {
+      if (!written) {
+        Files.deleteIfExists(tempOutput);
+      }
+    }
+  }
+
+  private long run(String inputPath, Path outputPath) throws IOException {
+    BlockingQueue<Batch> read = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    BlockingQueue<Batch> computed = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    BlockingQueue<Batch> predicted = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+
+    try (
+        CSVParser queryFileParser = CSVParser.parse(
+            new File(inputPath), Charset.defaultCharset(), CSVFormat.DEFAULT.withHeader());
+        Writer outputWriter = Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8);
+        CSVPrinter outputCSVPrinter = new CSVPrinter(
+            outputWriter, CSVFormat.DEFAULT.withHeader(OUTPUT_ID, Constant.CSV_RELEVANCE))
+    ) {
+      if (!queryFileParser.getHeaderMap().containsKey(OUTPUT_ID)) {
+        throw new IllegalArgumentException(inputPath + " has no " + OUTPUT_ID + " column");
+      }
+      ExecutorService stageThreads = Executors.newFixedThreadPool(4);
+      CompletionService<Long> stages = new ExecutorCompletionService<>(stageThreads);
+      try {
+        stages.submit(() -> readBatches(queryFileParser.iterator(), read));
+        stages.submit(() -> computeFeatures(read, computed));
+        stages.submit(() -> predict(computed, predicted));
+        stages.submit(() -> write(predicted, outputCSVPrinter));
+
+        // Only the writer counts rows. The first stage to fail stops the others, which may be blocked on its queue.
+        long rows = 0;
+        for (int i = 0; i < 4; ++i) {
+          rows += stages.take().get();
+        }
+        return rows;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while scoring " + inputPath, e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new RuntimeException(e.getCause());
+      } finally {
+        stageThreads.shutdownNow();
+      }
+    }
+  }
+
+  private long readBatches(Iterator<CSVRecord> records, BlockingQueue<Batch> out) throws InterruptedException {
+    while (records.hasNext()) {
+      List<CSVRecord> batch = new ArrayList<>(batchSize);
+      while (batch.size() < batchSize && records.hasNext()) {
+        batch.add(records.next());
+      }
+      out.put(new Batch(batch));
+    }
+    out.put(END);
+    return 0L;
+  }
+
+  // Batches are computed `threads` at a time and passed on in input order.
+  private long computeFeatures(BlockingQueue<Batch> in, BlockingQueue<Batch> out) throws Exception {
+    Iterator<Callable<Batch>> tasks = Iterators.transform(batches(in), batch -> () -> {
+      batch.featureVals = evaluate(batch.records);
+      return batch;
+    });
+    StartupTimer timer = new StartupTimer("Pipeline");
+    OrderedTasks.run(threads, tasks, batch -> {
+      try {
+        out.put(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while passing on features", e);
+      }
+      timer.rowsDone(batch.records.size());
+    });
+    out.put(END);
+    return 0L;
+  }
+
+  // Feature values of the records, records with the same search terms evaluated together.
+  private float[][] evaluate(List<CSVRecord> records) throws Exception {
+    float[][] featureVals = new float[records.size()][];
+    for (Map.Entry<String, List<Integer>> group : FeatureExtraction.groupBySearchTerms(records).entrySet()) {
+      List<Integer> rows = group.getValue();
+      QueryContext[] contexts = FeatureExtraction.groupContexts(records, group.getKey(), rows);
+      float[][] groupVals = evaluator.evaluate(contexts);
+      for (int i = 0; i < contexts.length; ++i) {
+        featureVals[rows.get(i)] = groupVals[i];
+      }
+    }
+    return featureVals;
+  }
+
+  private long predict(BlockingQueue<Batch> in, BlockingQueue<Batch> out) throws InterruptedException {
+    for (Batch batch = in.take(); batch != END; batch = in.take()) {
+      batch.relevance = model.predict(batch.featureVals);
+      batch.featureVals = null;
+      out.put(batch);
+    }
+    out.put(END);
+    return 0L;
+  }
+
+  private long write(BlockingQueue<Batch> in, CSVPrinter printer) throws InterruptedException, IOException {
+    long rows = 0;
+    for (Batch batch = in.take(); batch != END; batch = in.take()) {
+      for (int i = 0; i < batch.records.size(); ++i) {
+        printer.printRecord(batch.records.get(i).get(OUTPUT_ID), batch.relevance[i]);
+      }
+      rows += batch.records.size();
+    }
+    printer.flush();
+    return rows;
+  }
+
+  // Batches of a queue up to the end marker.
+  private static Iterator<Batch> batches(BlockingQueue<Batch> queue) {
+    return new AbstractIterator<Batch>() {
+      @Override
+      protected Batch computeNext() {
+        Batch batch;
+        try {
+          batch = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for query records", e);
+        }
+        return batch == END ? endOfData() : batch;
+      }
+    };
+  }
+
+  // Rows on their way through the stages; each stage fills in its part.
+  private static class Batch {
+    final List<CSVRecord> records;
+
+    float[][] featureVals;
+
+    float[] relevance;
+
+    Batch(List<CSVRecord> records) {
+      this.records = records;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package com.edfward.homedepot;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Writes a prediction file: a `"relevance"` header, then one prediction per line, clipped to [1, 3].
+ */
+final class PredictionWriter implements Closeable {
+  private final BufferedWriter writer;
+
+  PredictionWriter(String outputFilePath) throws IOException {
+    writer = Files.newBufferedWriter(Paths.get(outputFilePath), StandardCharsets.UTF_8);
+    // Print header.
+    writer.write("\"relevance\"\n");
+  }
+
+  void write(double score) throws IOException {
+    writer.write(RelevanceModel.clip(score) + "\n");
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
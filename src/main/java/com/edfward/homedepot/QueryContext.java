@@ -0,0 +1,190 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.QueryBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search terms of one row, analyzed once and shared by all features computed for that row.
+ * <p>
+ * Per-field analysis is done on first use. Rows with the same search terms can share it through
+ * {@link #withProduct(Long)}. Not thread-safe; a context and the ones derived from it belong to one thread.
+ */
+final class QueryContext {
+  private final Long productID;
+
+  private final String searchTerms;
+
+  // Lower-cased, escaped search terms without boolean operators.
+  private final String[] tokens;
+
+  private int docID = DocIDResolver.NOT_FOUND;
+
+  private final Map<String, List<Term>> termsByField;
+
+  private final Map<String, Query> sdmQueries;
+
+  private final Map<String, Phrase> phrasesByField;
+
+  QueryContext(Long productID, String searchTerms) {
+    this.productID = productID;
+    this.searchTerms = searchTerms;
+    this.tokens = Arrays.stream(searchTerms.toLowerCase().split("\\s+"))
+        .map(QueryParser::escape)
+        .filter(s -> !s.equals("and") && !s.equals("or"))
+        .toArray(String[]::new);
+    this.termsByField = new HashMap<>();
+    this.sdmQueries = new HashMap<>();
+    this.phrasesByField = new HashMap<>();
+  }
+
+  private QueryContext(QueryContext query, Long productID) {
+    this.productID = productID;
+    this.searchTerms = query.searchTerms;
+    this.tokens = query.tokens;
+    this.termsByField = query.termsByField;
+    this.sdmQueries = query.sdmQueries;
+    this.phrasesByField = query.phrasesByField;
+  }
+
+  /** Context of another product for the same search terms, sharing the analysis. */
+  QueryContext withProduct(Long productID) {
+    return new QueryContext(this, productID);
+  }
+
+  Long getProductID() {
+    return productID;
+  }
+
+  String getSearchTerms() {
+    return searchTerms;
+  }
+
+  /** Internal document ID of the product, resolved on first use. */
+  int getDocID() {
+    if (docID == DocIDResolver.NOT_FOUND) {
+      docID = FeatureBase.getDocID(productID);
+    }
+    return docID;
+  }
+
+  /** Search tokens which analyze to exactly one term in `field`, in query order. */
+  List<Term> getTerms(String field) {
+    List<Term> terms = termsByField.get(field);
+    if (terms == null) {
+      terms = new ArrayList<>();
+      QueryBuilder queryBuilder = new QueryBuilder(FeatureBase.analyzer);
+      for (String token : tokens) {
+        Query query = queryBuilder.createBooleanQuery(field, token);
+        if (query != null && query instanceof TermQuery) {
+          terms.add(((TermQuery) query).getTerm());
+        }
+      }
+      termsByField.put(field, terms);
+    }
+    return terms;
+  }
+
+  /** The search terms analyzed for `field` as one phrase, keeping the gaps of removed stop words. */
+  Phrase getPhrase(String field) throws IOException {
+    Phrase phrase = phrasesByField.get(field);
+    if (phrase == null) {
+      List<Term> terms = new ArrayList<>();
+      List<Integer> positions = new ArrayList<>();
+      try (TokenStream stream = FeatureBase.analyzer.tokenStream(field, searchTerms)) {
+        CharTermAttribute termAttribute = stream.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute incrementAttribute = stream.addAttribute(PositionIncrementAttribute.class);
+        stream.reset();
+        int position = -1;
+        while (stream.incrementToken()) {
+          position += incrementAttribute.getPositionIncrement();
+          terms.add(new Term(field, termAttribute.toString()));
+          positions.add(position);
+        }
+        stream.end();
+      }
+      phrase = new Phrase(terms.toArray(new Term[terms.size()]), positions.stream().mapToInt(i -> i).toArray());
+      phrasesByField.put(field, phrase);
+    }
+    return phrase;
+  }
+
+  /** Terms of a phrase and their positions in it. */
+  static final class Phrase {
+    final Term[] terms;
+
+    final int[] positions;
+
+    Phrase(Term[] terms, int[] positions) {
+      this.terms = terms;
+      this.positions = positions;
+    }
+  }
+
+  /** Query of sequential dependence model over `field`. */
+  Query getSDMQuery(String field) throws ParseException {
+    Query sdmQuery = sdmQueries.get(field);
+    if (sdmQuery == null) {
+      sdmQuery = buildSDMQuery(field);
+      sdmQueries.put(field, sdmQuery);
+    }
+    return sdmQuery;
+  }
+
+  // Build query of sequential dependence model.
+  private Query buildSDMQuery(String field) throws ParseException {
+    // Also serve as a query builder.
+    QueryParser parser = new QueryParser(field, FeatureBase.analyzer);
+
+    if (tokens.length == 0) {
+      // Simply parse the original search terms.
+      return parser.parse(QueryParser.escape(searchTerms));
+    }
+
+    // Query part 1: 'OR' connected terms.
+    Query concatQuery = parser.createBooleanQuery(field, String.join(" ", tokens), BooleanClause.Occur.SHOULD);
+    if (concatQuery == null) {
+      // Fallback, again.
+      concatQuery = parser.parse(QueryParser.escape(searchTerms));
+    }
+
+    BooleanQuery.Builder nearQueryBuilder = new BooleanQuery.Builder(),
+        windowQueryBuilder = new BooleanQuery.Builder();
+    for (int i = 0; i < tokens.length - 1; ++i) {
+      String bigram = tokens[i] + ' ' + tokens[i + 1];
+      // Near query requires exact phrase match.
+      Query nearQuery = parser.createPhraseQuery(field, bigram);
+      if (nearQuery != null) {
+        nearQueryBuilder.add(nearQuery, BooleanClause.Occur.SHOULD);
+      }
+      // Window size is 8.
+      Query windowQuery = parser.createPhraseQuery(field, bigram, 8);
+      if (windowQuery != null) {
+        windowQueryBuilder.add(windowQuery, BooleanClause.Occur.SHOULD);
+      }
+    }
+
+    return new BooleanQuery.Builder()
+        .add(concatQuery, BooleanClause.Occur.SHOULD)
+        // Query part 2: Near query, match exact bigrams.
+        .add(nearQueryBuilder.build(), BooleanClause.Occur.SHOULD)
+        // Query part 3: Window query, match two terms inside a window of size 8.
+        .add(windowQueryBuilder.build(), BooleanClause.Occur.SHOULD)
+        .build();
+  }
+}
@@ -0,0 +1,179 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Ranks of known documents in the results of a query, counted without collecting the results.
+ * <p>
+ * The target documents are scored first. Every other match is then only compared with them: it ranks ahead of a
+ * target if it scores higher, or the same with a smaller document ID, which is the order of top hits. There is no
+ * priority queue, and counting stops once even the best target has `limit` documents ahead of it.
+ */
+final class RankCollector extends SimpleCollector {
+  static final int NOT_FOUND = -1;
+
+  // Matching targets, best first.
+  private final float[] targetScores;
+
+  private final int[] targetDocs;
+
+  // Number of collected documents ranking ahead of target `i` but not of target `i - 1`.
+  private final int[] aheadSteps;
+
+  private final int limit;
+
+  private Scorer scorer;
+
+  private int docBase;
+
+  private RankCollector(float[] targetScores, int[] targetDocs, int limit) {
+    this.targetScores = targetScores;
+    this.targetDocs = targetDocs;
+    this.aheadSteps = new int[targetDocs.length];
+    this.limit = limit;
+  }
+
+  /**
+   * Rank of each document among the matches of `query`, counted from 0. Ranks of `limit` or more are reported as
+   * `limit`, and documents not matching get {@link #NOT_FOUND}.
+   *
+   * @param docIDs internal document IDs, live in the searcher's reader.
+   */
+  static int[] ranks(IndexSearcher searcher, Query query, int[] docIDs, int limit) throws IOException {
+    Weight weight = searcher.createNormalizedWeight(query, true);
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+
+    // Targets are scored by the same bulk scorers as the other matches, so that ties compare exactly.
+    int[] targets = Arrays.stream(docIDs).distinct().sorted().toArray();
+    float[] scores = new float[targets.length];
+    ScoreCapture capture = new ScoreCapture();
+    LeafReaderContext leaf = null;
+    BulkScorer bulkScorer = null;
+    for (int t = 0; t < targets.length; ++t) {
+      if (leaf == null || targets[t] >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(targets[t], leaves));
+        bulkScorer = weight.bulkScorer(leaf);
+      }
+      capture.score = Float.NaN;
+      if (bulkScorer != null) {
+        int leafDocID = targets[t] - leaf.docBase;
+        bulkScorer.score(capture, leaf.reader().getLiveDocs(), leafDocID, leafDocID + 1);
+      }
+      scores[t] = capture.score;
+    }
+
+    // Matching targets, best first.
+    Integer[] matching = IntStream.range(0, targets.length)
+        .filter(t -> !Float.isNaN(scores[t]))
+        .boxed()
+        .sorted((a, b) -> scores[a] != scores[b]
+            ? Float.compare(scores[b], scores[a])
+            : Integer.compare(targets[a], targets[b]))
+        .toArray(Integer[]::new);
+    float[] targetScores = new float[matching.length];
+    int[] targetDocs = new int[matching.length];
+    for (int j = 0; j < matching.length; ++j) {
+      targetScores[j] = scores[matching[j]];
+      targetDocs[j] = targets[matching[j]];
+    }
+
+    RankCollector collector = new RankCollector(targetScores, targetDocs, limit);
+    for (LeafReaderContext context : leaves) {
+      try {
+        LeafCollector leafCollector = collector.getLeafCollector(context);
+        BulkScorer scorer = weight.bulkScorer(context);
+        if (scorer != null) {
+          scorer.score(leafCollector, context.reader().getLiveDocs());
+        }
+      } catch (CollectionTerminatedException e) {
+        // Enough documents ahead of every target in this segment, or in all of them.
+      }
+    }
+
+    int[] targetRanks = new int[targets.length];
+    Arrays.fill(targetRanks, NOT_FOUND);
+    int ahead = 0;
+    for (int j = 0; j < matching.length; ++j) {
+      ahead += collector.aheadSteps[j];
+      targetRanks[matching[j]] = Math.min(ahead, limit);
+    }
+    int[] ranks = new int[docIDs.length];
+    for (int i = 0; i < docIDs.length; ++i) {
+      ranks[i] = targetRanks[Arrays.binarySearch(targets, docIDs[i])];
+    }
+    return ranks;
+  }
+
+  @Override
+  protected void doSetNextReader(LeafReaderContext context) throws IOException {
+    if (aheadSteps.length == 0 || aheadSteps[0] >= limit) {
+      throw new CollectionTerminatedException();
+    }
+    docBase = context.docBase;
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    float score = scorer.score();
+    int docID = docBase + doc;
+
+    // First target the document ranks ahead of; it ranks ahead of all the targets after that one too.
+    int low = 0;
+    int high = targetDocs.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (score > targetScores[mid] || (score == targetScores[mid] && docID < targetDocs[mid])) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    if (low == targetDocs.length) {
+      return;
+    }
+    if (++aheadSteps[low] >= limit && low == 0) {
+      throw new CollectionTerminatedException();
+    }
+  }
+
+  @Override
+  public boolean needsScores() {
+    return true;
+  }
+
+  // Score of the last collected document.
+  private static final class ScoreCapture implements LeafCollector {
+    private Scorer scorer;
+
+    float score;
+
+    @Override
+    public void setScorer(Scorer scorer) {
+      this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      score = scorer.score();
+    }
+  }
+}
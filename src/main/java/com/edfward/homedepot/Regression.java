@@ -1,9 +1,6 @@
 package com.edfward.homedepot;
 
-import org.canova.api.records.reader.RecordReader;
-import org.canova.api.records.reader.impl.CSVRecordReader;
-import org.canova.api.split.FileSplit;
-import org.deeplearning4j.datasets.canova.RecordReaderDataSetIterator;
+import com.google.common.base.Throwables;
 import org.deeplearning4j.datasets.iterator.DataSetIterator;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
@@ -13,37 +10,66 @@ import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.conf.layers.RBM;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.api.IterationListener;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.SplitTestAndTrain;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class Regression {
+  static final String BATCH_SIZE_PROPERTY = "homedepot.training.batch";
 
-  public static final int TRAINING_SIZE = 74067;
+  static final String EPOCHS_PROPERTY = "homedepot.training.epochs";
 
-  public static final int TESTING_SIZE = 166693;
+  static final String SHUFFLE_BUFFER_PROPERTY = "homedepot.training.shuffle";
+
+  static final String PREDICTION_BATCH_PROPERTY = "homedepot.prediction.batch";
+
+  static final String FEATURES_PROPERTY = "homedepot.training.features";
+
+  // Mini-batches between two logged training scores.
+  private static final int SCORE_LOG_BATCHES = 100;
+
+  // Share of the training rows fitted on, the rest are held out to report RMSE.
+  private static final double TRAINING_SHARE = 0.9;
 
   private static Logger log = LoggerFactory.getLogger(Regression.class);
 
   public static void main(String[] args) throws IOException, InterruptedException {
     int seed = 123;
-    int iterations = 10;
-    int featureNum = 6;
-
-    RecordReader trainSetReader = new CSVRecordReader();
-    trainSetReader.initialize(new FileSplit(new File("data/train-feature-6.csv")));
-
-    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder().miniBatch(false)
+    // One optimizer step per mini-batch; the epochs make the passes over the data.
+    int iterations = 1;
+    // Rows per mini-batch, passes over the training rows, and rows in the shuffle buffer.
+    int batchSize = Integer.getInteger(BATCH_SIZE_PROPERTY, 1024);
+    int epochs = Integer.getInteger(EPOCHS_PROPERTY, 10);
+    int shuffleBuffer = Integer.getInteger(SHUFFLE_BUFFER_PROPERTY, 65_536);
+    // Test rows scored at a time.
+    int predictionBatch = Integer.getInteger(PREDICTION_BATCH_PROPERTY, 8192);
+
+    // Feature stores written by `FeatureExtraction`.
+    FeatureStore trainStore = FeatureStore.open(Paths.get("data/train-feature"));
+    FeatureStore testStore = FeatureStore.open(Paths.get("data/test-feature"));
+    List<String> featureNames = featureNames(trainStore);
+    int featureNum = featureNames.size();
+    int trainingRows = (int) (trainStore.rows() * TRAINING_SHARE);
+    log.info(trainingRows + " training rows, " + (trainStore.rows() - trainingRows) + " held out, "
+        + testStore.rows() + " test rows, features " + featureNames);
+
+    // Scaling of the training rows, from one pass over their columns.
+    Standardizer standardizer = Standardizer.fit(trainStore, featureNames, 0, trainingRows);
+
+    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder().miniBatch(true)
         .weightInit(WeightInit.XAVIER)
         .seed(seed)  // Seed to lock in weight initialization for tuning.
         .iterations(iterations)  // # training iterations predict/classify & backprop.
@@ -71,63 +97,144 @@ public class Regression {
         )  // NN layer type.
         .build();
 
-    DataSetIterator trainSetIter = new RecordReaderDataSetIterator(trainSetReader, null, TRAINING_SIZE, featureNum, 1, true);
-    DataSet trainSet = trainSetIter.next();
+    FeatureStoreDataSetIterator trainSetIter = new FeatureStoreDataSetIterator(
+        trainStore, featureNames, Constant.CSV_RELEVANCE, batchSize, 0, trainingRows)
+        .setShuffle(shuffleBuffer, seed);
+    trainSetIter.setPreProcessor(standardizer);
+    DataSetIterator heldOutIter = new FeatureStoreDataSetIterator(
+        trainStore, featureNames, Constant.CSV_RELEVANCE, batchSize, trainingRows, trainStore.rows());
+    heldOutIter.setPreProcessor(standardizer);
 
-    SplitTestAndTrain testAndTrain = trainSet.splitTestAndTrain(0.9);
     MultiLayerNetwork network = new MultiLayerNetwork(conf);
 
     network.init();
-    int listenerFreq = iterations / 5;
-    network.setListeners(Arrays.asList((IterationListener) new ScoreIterationListener(listenerFreq)));
-
-    trainSet.normalizeZeroMeanZeroUnitVariance();
-    trainSet.shuffle();
 
-    network.fit(testAndTrain.getTrain());
-
-    DataSet test = testAndTrain.getTest();
-    INDArray output = network.output(test.getFeatureMatrix());
-    log.info("RMSE: " + rmse(test.getLabels(), output));
+    for (int epoch = 1; epoch <= epochs; ++epoch) {
+      trainSetIter.reset();
+      for (int batch = 1; trainSetIter.hasNext(); ++batch) {
+        network.fit(trainSetIter.next());
+        if (batch % SCORE_LOG_BATCHES == 0) {
+          log.info("Epoch " + epoch + ", batch " + batch + ", score " + network.score());
+        }
+      }
+      log.info("Epoch " + epoch + " of " + epochs + ", held-out RMSE: " + rmse(network, heldOutIter));
+    }
+    // Kept for `ScoringService`.
+    RelevanceModel model = new RelevanceModel(featureNames, standardizer, network);
+    model.save(Paths.get("data/model"));
 
-    RecordReader testSetReader = new CSVRecordReader();
-    testSetReader.initialize(new FileSplit(new File("data/test-feature-6.csv")));
-    DataSetIterator testSetIter = new RecordReaderDataSetIterator(testSetReader, TESTING_SIZE);
-    DataSet testSet = testSetIter.next();
-    INDArray testOutput = network.output(testSet.getFeatureMatrix());
+    output("data/predict.txt", model, testStore, predictionBatch);
+  }
 
-    output("data/predict-6.txt", testOutput);
+  /**
+   * Input features: the comma-separated names of {@value #FEATURES_PROPERTY}, or every column of the store but
+   * relevance.
+   */
+  static List<String> featureNames(FeatureStore store) {
+    String property = System.getProperty(FEATURES_PROPERTY);
+    if (property == null) {
+      List<String> featureNames = new ArrayList<>(store.getNames());
+      featureNames.remove(Constant.CSV_RELEVANCE);
+      return featureNames;
+    }
+    List<String> featureNames = new ArrayList<>();
+    for (String name : property.split(",")) {
+      name = name.trim();
+      if (!store.getNames().contains(name)) {
+        throw new IllegalArgumentException("Unknown feature '" + name + "' in " + FEATURES_PROPERTY
+            + ", expected some of " + store.getNames());
+      }
+      featureNames.add(name);
+    }
+    return featureNames;
   }
 
-  private static double rmse(INDArray array1, INDArray array2) {
-    int size = array1.shape()[0];
+  // Root mean squared error over all batches of `data`.
+  private static double rmse(MultiLayerNetwork network, DataSetIterator data) {
+    data.reset();
     double diffSum = 0;
-    for (int i = 0; i < size; i++) {
-      double diff = array1.getDouble(i) - array2.getDouble(i);
-      diffSum += diff * diff;
+    int size = 0;
+    while (data.hasNext()) {
+      DataSet batch = data.next();
+      INDArray labels = batch.getLabels();
+      INDArray output = network.output(batch.getFeatureMatrix());
+      for (int i = 0; i < labels.rows(); i++) {
+        double diff = labels.getDouble(i) - output.getDouble(i);
+        diffSum += diff * diff;
+      }
+      size += labels.rows();
     }
     return Math.sqrt(diffSum / size);
   }
 
-  private static void output(String outputFilePath, INDArray predicts) {
-    try (
-        FileWriter writer = new FileWriter(outputFilePath)
-    ) {
-      // Print header.
-      writer.write("\"relevance\"\n");
-      int size = predicts.shape()[0];
-      for (int i = 0; i < size; ++i) {
-        double score = predicts.getDouble(i);
-        if (score < 1) {
-          score = 1;
-        } else if (score > 3) {
-          score = 3;
+  /**
+   * Score the rows of `store` in batches of `batchSize` and write the predictions. Each batch is written on another
+   * thread while the next one is read and scored, so at most two batches are held at a time. If scoring or writing
+   * fails, no output file is left behind.
+   */
+  private static void output(String outputFilePath, RelevanceModel model, FeatureStore store, int batchSize)
+      throws IOException {
+    // Raw values, the model scales them.
+    DataSetIterator batches = new FeatureStoreDataSetIterator(store, model.getFeatureNames(), null, batchSize);
+    ExecutorService writerThread = Executors.newSingleThreadExecutor();
+    // The file is only deleted if this call created it and did not finish it.
+    boolean opened = false;
+    boolean written = false;
+    try {
+      try (
+          PredictionWriter writer = new PredictionWriter(outputFilePath)
+      ) {
+        opened = true;
+        try {
+          Future<?> pendingWrite = null;
+          while (batches.hasNext()) {
+            float[] predicts = model.predict(batches.next().getFeatureMatrix());
+            await(pendingWrite);
+            pendingWrite = writerThread.submit(() -> {
+              for (float predict : predicts) {
+                writer.write(predict);
+              }
+              return null;
+            });
+          }
+          await(pendingWrite);
+        } finally {
+          // A write still pending after a failure finishes before the writer is closed.
+          writerThread.shutdown();
+          awaitTermination(writerThread);
         }
-        writer.write(score + "\n");
       }
-    } catch (IOException e) {
-      System.err.println("Write result file failed");
-      e.printStackTrace();
+      written = true;
+    } finally {
+      if (opened && !written) {
+        Files.deleteIfExists(Paths.get(outputFilePath));
+      }
+    }
+  }
+
+  // Doesn't throw, as it runs on the way out of a failure too.
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        System.err.println("Prediction writer did not stop within a minute");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(Future<?> write) throws IOException {
+    if (write == null) {
+      return;
+    }
+    try {
+      write.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing predictions", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
     }
   }
 }
@@ -0,0 +1,298 @@
+package com.edfward.homedepot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A regression tree over {@link BinnedColumns}, kept in parallel arrays of nodes.
+ * <p>
+ * Node `i` sends rows with feature `feature[i]` at most `threshold[i]` to `left[i]` and the others to `right[i]`;
+ * leaves have no feature and predict `value[i]`, the mean target of their training rows. Splits are chosen from
+ * per-bin histograms of target sums, maximizing the decrease of squared error.
+ */
+final class RegressionTree {
+  private static final int LEAF = -1;
+
+  // Nodes with fewer rows search their split on one thread, as forking costs more than it saves.
+  private static final int PARALLEL_SPLIT_ROWS = 20_000;
+
+  private final int[] feature;
+
+  private final int[] splitBin;
+
+  private final float[] threshold;
+
+  private final int[] left;
+
+  private final int[] right;
+
+  private final float[] value;
+
+  private RegressionTree(Builder builder) {
+    int size = builder.size;
+    feature = Arrays.copyOf(builder.feature, size);
+    splitBin = Arrays.copyOf(builder.splitBin, size);
+    threshold = Arrays.copyOf(builder.threshold, size);
+    left = Arrays.copyOf(builder.left, size);
+    right = Arrays.copyOf(builder.right, size);
+    value = Arrays.copyOf(builder.value, size);
+  }
+
+  /**
+   * Grow a tree fitting `targets` on `rows` of `data`; rows may repeat, e.g. in a bootstrap sample.
+   *
+   * @param rows      reordered while growing.
+   * @param splitPool pool to search the splits of large nodes on, or null to stay on the calling thread.
+   */
+  static RegressionTree grow(BinnedColumns data, float[] targets, int[] rows, TreeEnsembleConfig config,
+                             Random random, ForkJoinPool splitPool) {
+    Builder builder = new Builder(data, targets, config, random, splitPool);
+    builder.grow(rows, 0, rows.length, 0);
+    return new RegressionTree(builder);
+  }
+
+  /** Prediction for a row of raw values, one per feature. */
+  float predict(float[] row) {
+    int node = 0;
+    while (feature[node] != LEAF) {
+      node = row[feature[node]] <= threshold[node] ? left[node] : right[node];
+    }
+    return value[node];
+  }
+
+  /** Prediction for a row of column-major raw values. */
+  float predict(float[][] columns, int row) {
+    int node = 0;
+    while (feature[node] != LEAF) {
+      node = columns[feature[node]][row] <= threshold[node] ? left[node] : right[node];
+    }
+    return value[node];
+  }
+
+  /** Prediction for a row of the binned training data, same as for its raw values. */
+  float predict(BinnedColumns data, int row) {
+    int node = 0;
+    while (feature[node] != LEAF) {
+      node = data.bin(feature[node], row) <= splitBin[node] ? left[node] : right[node];
+    }
+    return value[node];
+  }
+
+  int size() {
+    return feature.length;
+  }
+
+  private static final class Split {
+    final int feature;
+
+    final int bin;
+
+    // Decrease of the sum of squared errors, up to a constant of the node.
+    final double gain;
+
+    Split(int feature, int bin, double gain) {
+      this.feature = feature;
+      this.bin = bin;
+      this.gain = gain;
+    }
+
+    // Ties go to the lower feature, so the result doesn't depend on search order.
+    boolean betterThan(Split other) {
+      return other == null || gain > other.gain || (gain == other.gain && feature < other.feature);
+    }
+  }
+
+  private static final class Builder {
+    private final BinnedColumns data;
+
+    private final float[] targets;
+
+    private final TreeEnsembleConfig config;
+
+    private final Random random;
+
+    private final ForkJoinPool splitPool;
+
+    // Features drawn per node.
+    private final int candidates;
+
+    private final int[] featureOrder;
+
+    private int size;
+
+    private int[] feature = new int[64];
+
+    private int[] splitBin = new int[64];
+
+    private float[] threshold = new float[64];
+
+    private int[] left = new int[64];
+
+    private int[] right = new int[64];
+
+    private float[] value = new float[64];
+
+    Builder(BinnedColumns data, float[] targets, TreeEnsembleConfig config, Random random, ForkJoinPool splitPool) {
+      this.data = data;
+      this.targets = targets;
+      this.config = config;
+      this.random = random;
+      this.splitPool = splitPool;
+      this.candidates = Math.max(1, (int) Math.round(data.features() * config.getFeatureFraction()));
+      this.featureOrder = new int[data.features()];
+      for (int f = 0; f < featureOrder.length; ++f) {
+        featureOrder[f] = f;
+      }
+    }
+
+    // Grow the subtree of rows [from, to) and return its root.
+    int grow(int[] rows, int from, int to, int depth) {
+      int node = addNode();
+      int n = to - from;
+      double sum = 0;
+      for (int i = from; i < to; ++i) {
+        sum += targets[rows[i]];
+      }
+      value[node] = n == 0 ? 0 : (float) (sum / n);
+      if (depth >= config.getMaxDepth() || n < 2 * config.getMinLeafRows()) {
+        return node;
+      }
+
+      Split split = findSplit(rows, from, to, sum, drawFeatures());
+      if (split == null || split.gain <= 0) {
+        return node;
+      }
+      int mid = partition(rows, from, to, split.feature, split.bin);
+      feature[node] = split.feature;
+      splitBin[node] = split.bin;
+      threshold[node] = data.threshold(split.feature, split.bin);
+      int leftChild = grow(rows, from, mid, depth + 1);
+      int rightChild = grow(rows, mid, to, depth + 1);
+      left[node] = leftChild;
+      right[node] = rightChild;
+      return node;
+    }
+
+    private int addNode() {
+      if (size == feature.length) {
+        int capacity = size * 2;
+        feature = Arrays.copyOf(feature, capacity);
+        splitBin = Arrays.copyOf(splitBin, capacity);
+        threshold = Arrays.copyOf(threshold, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        value = Arrays.copyOf(value, capacity);
+      }
+      feature[size] = LEAF;
+      return size++;
+    }
+
+    // The first `candidates` features of a partial shuffle.
+    private int[] drawFeatures() {
+      if (candidates == featureOrder.length) {
+        return featureOrder;
+      }
+      for (int i = 0; i < candidates; ++i) {
+        int j = i + random.nextInt(featureOrder.length - i);
+        int swap = featureOrder[i];
+        featureOrder[i] = featureOrder[j];
+        featureOrder[j] = swap;
+      }
+      return Arrays.copyOf(featureOrder, candidates);
+    }
+
+    private Split findSplit(int[] rows, int from, int to, double sum, int[] features) {
+      Split best = null;
+      if (splitPool == null || to - from < PARALLEL_SPLIT_ROWS || features.length == 1) {
+        for (int f : features) {
+          Split split = findSplit(rows, from, to, sum, f);
+          if (split != null && split.betterThan(best)) {
+            best = split;
+          }
+        }
+        return best;
+      }
+
+      List<Callable<Split>> tasks = new ArrayList<>(features.length);
+      for (int f : features) {
+        tasks.add(() -> findSplit(rows, from, to, sum, f));
+      }
+      try {
+        for (Future<Split> future : splitPool.invokeAll(tasks)) {
+          Split split = future.get();
+          if (split != null && split.betterThan(best)) {
+            best = split;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while searching splits", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+      return best;
+    }
+
+    // Best split of one feature from the histogram of its bins.
+    private Split findSplit(int[] rows, int from, int to, double sum, int f) {
+      int bins = data.binCount(f);
+      if (bins < 2) {
+        return null;
+      }
+      double[] binSums = new double[bins];
+      int[] binCounts = new int[bins];
+      for (int i = from; i < to; ++i) {
+        int row = rows[i];
+        int bin = data.bin(f, row);
+        binSums[bin] += targets[row];
+        ++binCounts[bin];
+      }
+
+      int n = to - from;
+      int minLeafRows = config.getMinLeafRows();
+      double parent = sum * sum / n;
+      Split best = null;
+      double leftSum = 0;
+      int leftCount = 0;
+      for (int bin = 0; bin < bins - 1; ++bin) {
+        leftSum += binSums[bin];
+        leftCount += binCounts[bin];
+        int rightCount = n - leftCount;
+        if (leftCount < minLeafRows || binCounts[bin] == 0) {
+          continue;
+        }
+        if (rightCount < minLeafRows) {
+          break;
+        }
+        double rightSum = sum - leftSum;
+        double gain = leftSum * leftSum / leftCount + rightSum * rightSum / rightCount - parent;
+        if (best == null || gain > best.gain) {
+          best = new Split(f, bin, gain);
+        }
+      }
+      return best;
+    }
+
+    // Move rows going left of the split to the front; returns where the right ones start.
+    private int partition(int[] rows, int from, int to, int f, int bin) {
+      int i = from;
+      int j = to - 1;
+      while (i <= j) {
+        if (data.bin(f, rows[i]) <= bin) {
+          ++i;
+        } else {
+          int swap = rows[i];
+          rows[i] = rows[j];
+          rows[j--] = swap;
+        }
+      }
+      return i;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package com.edfward.homedepot;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A trained network with the names of its input features, in input order, and the {@link Standardizer} its inputs
+ * were scaled with in training.
+ * <p>
+ * Saved as a directory of the feature names, one per line, the scaling, the network configuration as JSON and its
+ * parameters; models saved without scaling take raw feature values. Predictions are clipped to the range of
+ * relevance, [1, 3]. Thread-safe; predictions are serialized, as the network keeps the input of the last call.
+ */
+final class RelevanceModel {
+  private static final String FEATURES_FILE = "features";
+
+  private static final String STANDARDIZER_FILE = "standardizer";
+
+  private static final String CONFIGURATION_FILE = "configuration.json";
+
+  private static final String PARAMETERS_FILE = "parameters.bin";
+
+  static final float MIN_RELEVANCE = 1;
+
+  static final float MAX_RELEVANCE = 3;
+
+  private final List<String> featureNames;
+
+  // Null for raw inputs.
+  private final Standardizer standardizer;
+
+  private final MultiLayerNetwork network;
+
+  RelevanceModel(List<String> featureNames, Standardizer standardizer, MultiLayerNetwork network) {
+    if (standardizer != null && standardizer.size() != featureNames.size()) {
+      throw new IllegalArgumentException(
+          "Scaling of " + standardizer.size() + " features for " + featureNames.size() + " features");
+    }
+    this.featureNames = Collections.unmodifiableList(new ArrayList<>(featureNames));
+    this.standardizer = standardizer;
+    this.network = network;
+  }
+
+  static RelevanceModel load(Path directory) throws IOException {
+    List<String> featureNames = Files.readAllLines(directory.resolve(FEATURES_FILE), StandardCharsets.UTF_8);
+    Path standardizerPath = directory.resolve(STANDARDIZER_FILE);
+    Standardizer standardizer = Files.exists(standardizerPath) ? Standardizer.load(standardizerPath) : null;
+    String json = new String(Files.readAllBytes(directory.resolve(CONFIGURATION_FILE)), StandardCharsets.UTF_8);
+    INDArray parameters;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(directory.resolve(PARAMETERS_FILE))))) {
+      parameters = Nd4j.read(in);
+    }
+    MultiLayerNetwork network = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(json), parameters);
+    network.init();
+    return new RelevanceModel(featureNames, standardizer, network);
+  }
+
+  void save(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    Files.write(directory.resolve(FEATURES_FILE), featureNames, StandardCharsets.UTF_8);
+    if (standardizer != null) {
+      standardizer.save(directory.resolve(STANDARDIZER_FILE));
+    } else {
+      Files.deleteIfExists(directory.resolve(STANDARDIZER_FILE));
+    }
+    Files.write(directory.resolve(CONFIGURATION_FILE),
+        network.getLayerWiseConfigurations().toJson().getBytes(StandardCharsets.UTF_8));
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(directory.resolve(PARAMETERS_FILE))))) {
+      Nd4j.write(network.params(), out);
+    }
+  }
+
+  List<String> getFeatureNames() {
+    return featureNames;
+  }
+
+  /** Relevance of each row of feature values, given in the order of {@link #getFeatureNames()}. */
+  float[] predict(float[][] rows) {
+    if (rows.length == 0) {
+      return new float[0];
+    }
+    float[] data = new float[rows.length * featureNames.size()];
+    for (int i = 0; i < rows.length; ++i) {
+      if (rows[i].length != featureNames.size()) {
+        throw new IllegalArgumentException(
+            "Expected " + featureNames.size() + " feature values, got " + rows[i].length);
+      }
+      System.arraycopy(rows[i], 0, data, i * featureNames.size(), featureNames.size());
+    }
+    return predict(Nd4j.create(data, new int[]{rows.length, featureNames.size()}, 'c'));
+  }
+
+  /**
+   * Relevance of each row of a matrix of raw feature values, one column per feature in the order of
+   * {@link #getFeatureNames()}. The matrix is scaled in place.
+   */
+  float[] predict(INDArray features) {
+    if (features.columns() != featureNames.size()) {
+      throw new IllegalArgumentException(
+          "Expected " + featureNames.size() + " feature values, got " + features.columns());
+    }
+    if (standardizer != null) {
+      standardizer.apply(features);
+    }
+    INDArray output;
+    synchronized (this) {
+      output = network.output(features);
+    }
+    // One bulk copy of the column of outputs.
+    float[] relevance = output.dup().data().asFloat();
+    for (int i = 0; i < relevance.length; ++i) {
+      relevance[i] = clip(relevance[i]);
+    }
+    return relevance;
+  }
+
+  static float clip(double score) {
+    return (float) Math.max(MIN_RELEVANCE, Math.min(MAX_RELEVANCE, score));
+  }
+}
@@ -0,0 +1,291 @@
+package com.edfward.homedepot;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores (product, search terms) pairs over HTTP with a {@link RelevanceModel} saved by {@link Regression}, keeping
+ * the index and the model loaded.
+ * <p>
+ * `GET /score?product_uid=..&amp;search_term=..` scores one pair. `POST /score` scores a batch of
+ * `product_uid,search_term` CSV records, one per line, and answers with one relevance per line in the same order.
+ * Requests are scored by {@value #THREADS_PROPERTY} workers (one per processor by default), and up to
+ * {@value #QUEUE_PROPERTY} more wait for one; beyond that they are turned away with 503 rather than queueing without
+ * bound. Bodies over {@value #MAX_BODY_BYTES} bytes or {@value #MAX_BATCH_ROWS} rows are turned away with 413.
+ * `GET /stats` reports counts and latency percentiles since start.
+ */
+public class ScoringService {
+  static final String PORT_PROPERTY = "homedepot.port";
+
+  static final String THREADS_PROPERTY = "homedepot.threads";
+
+  static final String QUEUE_PROPERTY = "homedepot.queue";
+
+  static final String MODEL_PROPERTY = "homedepot.model";
+
+  static final int MAX_BATCH_ROWS = 10_000;
+
+  static final int MAX_BODY_BYTES = 2 << 20;
+
+  private final RelevanceModel model;
+
+  private final FeatureEvaluator evaluator;
+
+  private final HttpServer server;
+
+  // Parses requests and waits for the workers; never does the scoring itself.
+  private final ThreadPoolExecutor handlers;
+
+  private final ThreadPoolExecutor workers;
+
+  private final LongAdder requests = new LongAdder();
+
+  private final LongAdder rows = new LongAdder();
+
+  private final LongAdder rejected = new LongAdder();
+
+  private final LongAdder failed = new LongAdder();
+
+  // From receiving a scoring request to sending its response.
+  private final Metrics.Histogram requestLatency = new Metrics.Histogram();
+
+  // Time requests waited for a worker.
+  private final Metrics.Histogram queueLatency = new Metrics.Histogram();
+
+  ScoringService(RelevanceModel model, int port, int threads, int queueCapacity) throws IOException {
+    this.model = model;
+    // Opens the index, so the first request doesn't wait for it.
+    this.evaluator = new FeatureEvaluator(FeatureExtraction.featuresNamed(model.getFeatureNames()));
+    this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+    // One handler per request a worker can take or queue. Past those and as many waiting, the server's dispatcher
+    // thread handles the request itself, so it stops accepting connections until a handler is free.
+    this.handlers = new ThreadPoolExecutor(threads + queueCapacity, threads + queueCapacity, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads + queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.setExecutor(handlers);
+    server.createContext("/score", this::score);
+    server.createContext("/stats", exchange -> respond(exchange, 200, stats()));
+  }
+
+  public static void main(String[] args) throws IOException {
+    RelevanceModel model = RelevanceModel.load(Paths.get(System.getProperty(MODEL_PROPERTY, "data/model")));
+    ScoringService service = new ScoringService(model,
+        Integer.getInteger(PORT_PROPERTY, 8080),
+        Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+        Integer.getInteger(QUEUE_PROPERTY, 64));
+    Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+    service.start();
+  }
+
+  void start() {
+    server.start();
+    System.err.printf("Scoring on port %d with features %s%n", server.getAddress().getPort(), model.getFeatureNames());
+  }
+
+  void stop() {
+    server.stop(1);
+    workers.shutdownNow();
+    handlers.shutdownNow();
+    System.err.print(stats());
+  }
+
+  private void score(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    requests.increment();
+
+    List<QueryContext> contexts;
+    try {
+      contexts = parse(exchange);
+    } catch (TooLargeException e) {
+      failed.increment();
+      respond(exchange, 413, e.getMessage() + "\n");
+      return;
+    } catch (IllegalArgumentException e) {
+      failed.increment();
+      respond(exchange, 400, e.getMessage() + "\n");
+      return;
+    }
+
+    // Queue time starts here, after the body is read and parsed.
+    long submitted = System.nanoTime();
+    Future<float[]> result;
+    try {
+      result = workers.submit(() -> {
+        queueLatency.record(System.nanoTime() - submitted);
+        return predict(contexts);
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.increment();
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      respond(exchange, 503, "Too many requests in flight, retry later\n");
+      return;
+    }
+
+    float[] relevance;
+    try {
+      relevance = result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failed.increment();
+      respond(exchange, 503, "Shutting down\n");
+      return;
+    } catch (ExecutionException e) {
+      failed.increment();
+      e.getCause().printStackTrace();
+      respond(exchange, 500, "Scoring failed: " + e.getCause() + "\n");
+      return;
+    }
+
+    StringBuilder body = new StringBuilder();
+    for (float value : relevance) {
+      body.append(value).append('\n');
+    }
+    respond(exchange, 200, body.toString());
+    rows.add(relevance.length);
+    requestLatency.record(System.nanoTime() - start);
+  }
+
+  // Rows of the request, rows with the same search terms sharing their analysis.
+  private List<QueryContext> parse(HttpExchange exchange) throws IOException {
+    List<String[]> pairs = new ArrayList<>();
+    if ("GET".equals(exchange.getRequestMethod())) {
+      Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+      pairs.add(new String[]{parameters.get(Constant.CSV_PRODUCT_ID), parameters.get(Constant.CSV_SEARCH_TERM)});
+    } else if ("POST".equals(exchange.getRequestMethod())) {
+      String body = new String(readAll(exchange.getRequestBody(), MAX_BODY_BYTES), StandardCharsets.UTF_8);
+      // The parser reads lazily, so malformed CSV, e.g. an unclosed quote, fails while iterating.
+      try {
+        for (CSVRecord record : CSVParser.parse(body, CSVFormat.DEFAULT)) {
+          if (record.size() != 2) {
+            throw new IllegalArgumentException(
+                "Expected product_uid,search_term on line " + record.getRecordNumber());
+          }
+          pairs.add(new String[]{record.get(0), record.get(1)});
+          if (pairs.size() > MAX_BATCH_ROWS) {
+            throw new TooLargeException("More than " + MAX_BATCH_ROWS + " rows in one request");
+          }
+        }
+      } catch (IllegalArgumentException e) {
+        throw e;
+      } catch (IOException | RuntimeException e) {
+        throw new IllegalArgumentException("Malformed CSV: " + e.getMessage(), e);
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported method " + exchange.getRequestMethod());
+    }
+
+    Map<String, QueryContext> queries = new HashMap<>();
+    List<QueryContext> contexts = new ArrayList<>(pairs.size());
+    for (String[] pair : pairs) {
+      if (pair[0] == null || pair[1] == null) {
+        throw new IllegalArgumentException(
+            "Missing " + Constant.CSV_PRODUCT_ID + " or " + Constant.CSV_SEARCH_TERM);
+      }
+      long productID;
+      try {
+        productID = Long.parseLong(pair[0].trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad " + Constant.CSV_PRODUCT_ID + ": " + pair[0]);
+      }
+      if (FeatureBase.idResolver.get(productID) == DocIDResolver.NOT_FOUND) {
+        throw new IllegalArgumentException("Unknown " + Constant.CSV_PRODUCT_ID + ": " + productID);
+      }
+      QueryContext query = queries.get(pair[1]);
+      if (query == null) {
+        query = new QueryContext(productID, pair[1]);
+        queries.put(pair[1], query);
+        contexts.add(query);
+      } else {
+        contexts.add(query.withProduct(productID));
+      }
+    }
+    return contexts;
+  }
+
+  private float[] predict(List<QueryContext> contexts) throws Exception {
+    float[][] values = new float[contexts.size()][];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = evaluator.evaluate(contexts.get(i));
+    }
+    return model.predict(values);
+  }
+
+  private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+    Map<String, String> parameters = new HashMap<>();
+    if (query == null) {
+      return parameters;
+    }
+    for (String parameter : query.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals > 0) {
+        parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+            URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+      }
+    }
+    return parameters;
+  }
+
+  // Stops reading as soon as the body is over `maxBytes`, however long it is.
+  private static byte[] readAll(InputStream in, int maxBytes) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      if (bytes.size() + n > maxBytes) {
+        throw new TooLargeException("More than " + maxBytes + " bytes in one request");
+      }
+      bytes.write(buffer, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  String stats() {
+    return String.format("requests=%d, rows=%d, rejected=%d, failed=%d, queued=%d, active=%d%n"
+            + "request: %s%nqueue: %s%nstored fields: %s%n",
+        requests.sum(), rows.sum(), rejected.sum(), failed.sum(), workers.getQueue().size(), workers.getActiveCount(),
+        requestLatency, queueLatency, FeatureBase.storedFieldCache);
+  }
+
+  // A request over one of the limits; answered with 413.
+  private static class TooLargeException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    TooLargeException(String message) {
+      super(message);
+    }
+  }
+}
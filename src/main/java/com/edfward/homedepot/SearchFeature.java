@@ -1,103 +1,48 @@
 package com.edfward.homedepot;
 
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.stream.Collectors;
 
 
 abstract class SearchFeature extends FieldFeatureBase {
 
-  // Build query of sequential dependence model.
-  private final Query buildSDMQuery(String searchQuery) throws ParseException {
-    String[] terms = Arrays.stream(searchQuery.toLowerCase().split("\\s+"))
-        .map(QueryParser::escape)
-        .filter(s -> !s.equals("and") && !s.equals("or"))
-        .toArray(String[]::new);
-
-    // Also serve as a query builder.
-    QueryParser parser = new QueryParser(getField(), analyzer);
-
-    if (terms.length == 0) {
-      // Simply parse the original search terms.
-      return parser.parse(QueryParser.escape(searchQuery));
-    }
-
-    // Query part 1: 'OR' connected terms.
-    Query concatQuery = parser.createBooleanQuery(
-        getField(),
-        Arrays.stream(terms).collect(Collectors.joining(" ")),
-        BooleanClause.Occur.SHOULD);
-    if (concatQuery == null) {
-      // Fallback, again.
-      concatQuery = parser.parse(QueryParser.escape(searchQuery));
-    }
-
-    BooleanQuery.Builder nearQueryBuilder = new BooleanQuery.Builder(),
-        windowQueryBuilder = new BooleanQuery.Builder();
-    for (int i = 0; i < terms.length - 1; ++i) {
-      // Near query requires exact phrase match.
-      Query nearQuery = parser.createPhraseQuery(getField(), terms[i] + ' ' + terms[i + 1]);
-      if (nearQuery != null) {
-        nearQueryBuilder.add(nearQuery, BooleanClause.Occur.SHOULD);
-      }
-      // Window size is 8.
-      Query windowQuery = parser.createPhraseQuery(getField(), terms[i] + ' ' + terms[i + 1], 8);
-      if (windowQuery != null) {
-        windowQueryBuilder.add(windowQuery, BooleanClause.Occur.SHOULD);
-      }
-    }
-
-    Query finalQuery = new BooleanQuery.Builder()
-        .add(concatQuery, BooleanClause.Occur.SHOULD)
-        // Query part 2: Near query, match exact bigrams.
-        .add(nearQueryBuilder.build(), BooleanClause.Occur.SHOULD)
-        // Query part 3: Window query, match two terms inside a window of size 8.
-        .add(windowQueryBuilder.build(), BooleanClause.Occur.SHOULD)
-        .build();
-    return finalQuery;
+  protected final float score(QueryContext context, SearchSimilarity sim) throws ParseException, IOException {
+    DocScorer scorer = new DocScorer(similaritySearchers.get(sim), context.getSDMQuery(getField()));
+    return scorer.score(context.getDocID());
   }
 
-  protected final float score(Long productID, String searchQuery, SearchSimilarity sim)
-      throws ParseException, IOException {
-
-    switch (sim) {
-      case BM25:
-        searcher.setSimilarity(new BM25Similarity());
-        break;
-      case CLASSIC:
-        searcher.setSimilarity(new ClassicSimilarity());
-        break;
+  // Rows sharing the same search terms, sorted by document ID. The query is weighted once for all of them.
+  protected final float[] score(QueryContext[] rows, SearchSimilarity sim) throws ParseException, IOException {
+    if (rows.length == 0) {
+      return new float[0];
     }
-
-    Query idQuery = new TermQuery(new Term(Constant.FIELD_ID, productID.toString()));
-    Query sdmQuery = buildSDMQuery(searchQuery);
-
-    BooleanQuery query = new BooleanQuery.Builder()
-        .add(idQuery, BooleanClause.Occur.FILTER)
-        .add(sdmQuery, BooleanClause.Occur.SHOULD)
-        .build();
-
-    TopDocs docs = searcher.search(query, 1);
-    if (docs.totalHits != 1) {
-      throw new AssertionError("Couldn't find document with ID " + productID);
+    DocScorer scorer = new DocScorer(similaritySearchers.get(sim), rows[0].getSDMQuery(getField()));
+    int[] docIDs = new int[rows.length];
+    for (int i = 0; i < rows.length; ++i) {
+      docIDs[i] = rows[i].getDocID();
     }
-
-    return docs.scoreDocs[0].score;
+    return scorer.score(docIDs);
   }
 
   enum SearchSimilarity {
-    BM25, CLASSIC
+    BM25 {
+      @Override
+      Similarity create() {
+        return new BM25Similarity();
+      }
+    },
+    CLASSIC {
+      @Override
+      Similarity create() {
+        return new ClassicSimilarity();
+      }
+    };
+
+    abstract Similarity create();
   }
 }
 
@@ -116,7 +61,17 @@ class BM25Feature extends SearchFeature implements Feature {
 
   @Override
   public float getValue(Long productID, String searchTerms) throws IOException, ParseException {
-    return score(productID, searchTerms, SearchSimilarity.BM25);
+    return getValue(new QueryContext(productID, searchTerms));
+  }
+
+  @Override
+  public float getValue(QueryContext context) throws IOException, ParseException {
+    return score(context, SearchSimilarity.BM25);
+  }
+
+  @Override
+  public float[] getValues(QueryContext[] rows) throws IOException, ParseException {
+    return score(rows, SearchSimilarity.BM25);
   }
 
   @Override
@@ -140,7 +95,17 @@ class TFIDFFeature extends SearchFeature implements Feature {
 
   @Override
   public float getValue(Long productID, String searchTerms) throws IOException, ParseException {
-    return score(productID, searchTerms, SearchSimilarity.CLASSIC);
+    return getValue(new QueryContext(productID, searchTerms));
+  }
+
+  @Override
+  public float getValue(QueryContext context) throws IOException, ParseException {
+    return score(context, SearchSimilarity.CLASSIC);
+  }
+
+  @Override
+  public float[] getValues(QueryContext[] rows) throws IOException, ParseException {
+    return score(rows, SearchSimilarity.CLASSIC);
   }
 
   @Override
@@ -0,0 +1,90 @@
+package com.edfward.homedepot;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scales features to zero mean and unit variance, with the mean and standard deviation of each feature computed in
+ * one streaming pass over training rows, so nothing but the statistics is held in memory.
+ * <p>
+ * Applied to batches as a {@link DataSetPreProcessor}, and kept with the model so predictions see the same scaling.
+ */
+final class Standardizer implements DataSetPreProcessor {
+  private final float[] means;
+
+  private final float[] deviations;
+
+  private Standardizer(float[] means, float[] deviations) {
+    this.means = means;
+    this.deviations = deviations;
+  }
+
+  /** Statistics of `names` over rows [`from`, `to`) of the store. */
+  static Standardizer fit(FeatureStore store, List<String> names, int from, int to) {
+    float[] means = new float[names.size()];
+    float[] deviations = new float[names.size()];
+    for (int i = 0; i < names.size(); ++i) {
+      FloatBuffer column = store.column(names.get(i));
+      // Welford's algorithm, stable in a single pass.
+      double mean = 0;
+      double squares = 0;
+      for (int row = from; row < to; ++row) {
+        double value = column.get(row);
+        double delta = value - mean;
+        mean += delta / (row - from + 1);
+        squares += delta * (value - mean);
+      }
+      double deviation = to - from > 1 ? Math.sqrt(squares / (to - from - 1)) : 0;
+      means[i] = (float) mean;
+      // Constant features are only centered.
+      deviations[i] = deviation > 0 ? (float) deviation : 1;
+    }
+    return new Standardizer(means, deviations);
+  }
+
+  /** Scale a matrix of feature rows in place. */
+  void apply(INDArray features) {
+    features.subiRowVector(Nd4j.create(means));
+    features.diviRowVector(Nd4j.create(deviations));
+  }
+
+  @Override
+  public void preProcess(DataSet dataSet) {
+    apply(dataSet.getFeatureMatrix());
+  }
+
+  int size() {
+    return means.length;
+  }
+
+  // One line of "mean deviation" per feature.
+  static Standardizer load(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    float[] means = new float[lines.size()];
+    float[] deviations = new float[lines.size()];
+    for (int i = 0; i < lines.size(); ++i) {
+      String[] values = lines.get(i).split(" ");
+      means[i] = Float.parseFloat(values[0]);
+      deviations[i] = Float.parseFloat(values[1]);
+    }
+    return new Standardizer(means, deviations);
+  }
+
+  void save(Path file) throws IOException {
+    List<String> lines = new ArrayList<>(means.length);
+    for (int i = 0; i < means.length; ++i) {
+      lines.add(means[i] + " " + deviations[i]);
+    }
+    Files.write(file, lines, StandardCharsets.UTF_8);
+  }
+}
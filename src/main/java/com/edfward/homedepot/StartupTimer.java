@@ -0,0 +1,60 @@
+package com.edfward.homedepot;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Logs how long after JVM start the first row was done and when throughput settled.
+ * <p>
+ * Throughput is measured over windows of {@link #WINDOW_ROWS} rows. Steady state is the first window whose rows/sec
+ * is within {@link #STEADY_TOLERANCE} of the previous one. Call {@link #rowsDone(int)} from a single thread.
+ */
+class StartupTimer {
+  static final int WINDOW_ROWS = 1000;
+
+  static final double STEADY_TOLERANCE = 0.1;
+
+  private final String name;
+
+  private long rows;
+
+  private long windowStart = System.nanoTime();
+
+  private long windowRows;
+
+  private double lastRate = -1;
+
+  private boolean steady;
+
+  StartupTimer(String name) {
+    this.name = name;
+  }
+
+  void rowsDone(int count) {
+    if (rows == 0 && count > 0) {
+      System.err.printf("%s: first row done %d ms after JVM start%n", name, uptime());
+    }
+    rows += count;
+    if (steady) {
+      return;
+    }
+
+    windowRows += count;
+    if (windowRows < WINDOW_ROWS) {
+      return;
+    }
+    long now = System.nanoTime();
+    double rate = windowRows / ((now - windowStart) / 1e9);
+    if (lastRate > 0 && Math.abs(rate - lastRate) <= STEADY_TOLERANCE * lastRate) {
+      steady = true;
+      System.err.printf("%s: steady state at %.0f rows/sec after %d rows, %d ms after JVM start%n",
+          name, rate, rows, uptime());
+    }
+    lastRate = rate;
+    windowStart = now;
+    windowRows = 0;
+  }
+
+  private static long uptime() {
+    return ManagementFactory.getRuntimeMXBean().getUptime();
+  }
+}
@@ -0,0 +1,131 @@
+package com.edfward.homedepot;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stored field values of documents of one {@link IndexReader}, by internal document ID and field.
+ * <p>
+ * A miss loads only the requested field, with a {@link StoredFieldVisitor} that stops once it has it, instead of
+ * materializing the whole document. The same products come up row after row, so values are kept in a thread-safe
+ * LRU cache bounded by their approximate heap size, {@value #MAX_MEGABYTES_PROPERTY} MB (64 by default). A new cache
+ * is needed whenever the reader changes.
+ */
+final class StoredFieldCache {
+  static final String MAX_MEGABYTES_PROPERTY = "homedepot.storedfields.cache";
+
+  static final long DEFAULT_MAX_MEGABYTES = 64;
+
+  private static final LongAdder STORED_FIELD_LOOKUPS = Metrics.counter("lookups.stored_field");
+
+  private final IndexReader reader;
+
+  private final long maxBytes;
+
+  private final Cache<Key, String> cache;
+
+  // Weight of the cached values.
+  private final LongAdder bytes = new LongAdder();
+
+  StoredFieldCache(IndexReader reader) {
+    this(reader, Long.getLong(MAX_MEGABYTES_PROPERTY, DEFAULT_MAX_MEGABYTES) << 20);
+  }
+
+  StoredFieldCache(IndexReader reader, long maxBytes) {
+    this.reader = reader;
+    this.maxBytes = maxBytes;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maxBytes)
+        .<Key, String>weigher((key, value) -> weigh(value))
+        .removalListener(removal -> bytes.add(-weigh(removal.getValue())))
+        .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+        .recordStats()
+        .build();
+  }
+
+  // Approximate heap size of a cached value with its key and entry.
+  private static int weigh(String value) {
+    return 96 + 2 * value.length();
+  }
+
+  /** Value of stored `field` of document `docID`; empty if the document has none. */
+  String get(int docID, String field) throws IOException {
+    try {
+      return cache.get(new Key(docID, field), () -> load(docID, field));
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private String load(int docID, String field) throws IOException {
+    if (Metrics.ENABLED) {
+      STORED_FIELD_LOOKUPS.increment();
+    }
+    String[] value = new String[1];
+    reader.document(docID, new StoredFieldVisitor() {
+      @Override
+      public Status needsField(FieldInfo fieldInfo) {
+        if (value[0] != null) {
+          return Status.STOP;
+        }
+        return fieldInfo.name.equals(field) ? Status.YES : Status.NO;
+      }
+
+      @Override
+      public void stringField(FieldInfo fieldInfo, byte[] bytes) {
+        value[0] = new String(bytes, StandardCharsets.UTF_8);
+      }
+    });
+    String loaded = value[0] == null ? "" : value[0];
+    bytes.add(weigh(loaded));
+    return loaded;
+  }
+
+  /** Hit and miss counts since the cache was created. */
+  CacheStats stats() {
+    return cache.stats();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = cache.stats();
+    return String.format("hit ratio %.3f of %d lookups, %d values, %d of %d KB",
+        stats.hitRate(), stats.requestCount(), cache.size(), bytes.sum() >> 10, maxBytes >> 10);
+  }
+
+  private static final class Key {
+    final int docID;
+
+    final String field;
+
+    Key(int docID, String field) {
+      this.docID = docID;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return docID == other.docID && field.equals(other.field);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * docID + field.hashCode();
+    }
+  }
+}
@@ -1,80 +1,24 @@
 package com.edfward.homedepot;
 
-import org.apache.lucene.index.MultiDocValues;
-import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.PostingsEnum;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.TermQuery;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.util.QueryBuilder;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.List;
 
 abstract class TermFeature extends FieldFeatureBase {
-  abstract double calculateStatistics(Long productID, Term term) throws IOException;
+  // Formula of the feature, applied per query term and summed up.
+  abstract double calculateStatistics(TermStats stats) throws IOException;
 
-  private final int getDocID(Long productID) throws IOException {
-    Query idQuery = new TermQuery(new Term(Constant.FIELD_ID, productID.toString()));
-    TopDocs docs = searcher.search(idQuery, 1);
-
-    if (docs.totalHits != 1) {
-      throw new AssertionError("Couldn't find document with ID " + productID);
-    }
-
-    return docs.scoreDocs[0].doc;
-  }
-
-  protected final long getDocLen(Long productID) throws IOException {
-    NumericDocValues norms = MultiDocValues.getNormValues(searcher.getIndexReader(), getField());
-    int docID = getDocID(productID);
-    return norms.get(docID);
-  }
-
-  protected final double getTF(Long productID, Term term) throws IOException {
-    int docID = getDocID(productID);
-    double tf = 0;
-
-    PostingsEnum postingsEnum = MultiFields.getTermDocsEnum(searcher.getIndexReader(), term.field(), term.bytes());
-    if (postingsEnum != null) {
-      while (postingsEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS) {
-        if (postingsEnum.docID() == docID) {
-          tf = postingsEnum.freq();
-          break;
-        }
-      }
-    }
-    return tf;
-  }
-
-  protected final double getIDF(Term term) throws IOException {
-    double numDoc = searcher.getIndexReader().numDocs();
-    int df = searcher.getIndexReader().docFreq(term) + 1;
-    return numDoc / df;
+  protected final float sum(QueryContext context) throws IOException {
+    return sum(FeatureEvaluator.gatherStats(context, getField()));
   }
 
-  protected final float sum(Long productID, String searchQuery)
-      throws ParseException, IOException {
-    String[] terms = Arrays.stream(searchQuery.toLowerCase().split("\\s+"))
-        .map(QueryParser::escape)
-        .filter(s -> !s.equals("and") && !s.equals("or"))
-        .toArray(String[]::new);
-
+  // Sum over statistics gathered once for all term features of the field.
+  final float sum(List<TermStats> termStats) throws IOException {
     double sumVal = 0;
-
-    QueryBuilder queryBuilder = new QueryBuilder(analyzer);
-    for (String term : terms) {
-      Query query = queryBuilder.createBooleanQuery(getField(), term);
-      if (query != null && query instanceof TermQuery) {
-        Term t = ((TermQuery) query).getTerm();
-        sumVal += calculateStatistics(productID, t);
-      }
+    for (TermStats stats : termStats) {
+      sumVal += calculateStatistics(stats);
     }
-
     return (float) sumVal;
   }
 }
@@ -101,12 +45,17 @@ class TFFeature extends TermFeature implements Feature {
 
   @Override
   public float getValue(Long productID, String searchTerms) throws IOException, ParseException {
-    return sum(productID, searchTerms);
+    return sum(new QueryContext(productID, searchTerms));
+  }
+
+  @Override
+  public float getValue(QueryContext context) throws IOException {
+    return sum(context);
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    return getTF(productID, term);
+  double calculateStatistics(TermStats stats) throws IOException {
+    return stats.tf();
   }
 }
 
@@ -122,8 +71,8 @@ class TFSIGIRFeature extends TFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    return Math.log(1 + getTF(productID, term));
+  double calculateStatistics(TermStats stats) throws IOException {
+    return Math.log(1 + stats.tf());
   }
 }
 
@@ -139,9 +88,8 @@ class TFNormalizedFeature extends TFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    long docLen = getDocLen(productID);
-    return getTF(productID, term) / docLen;
+  double calculateStatistics(TermStats stats) throws IOException {
+    return stats.tfNorm();
   }
 }
 
@@ -157,9 +105,8 @@ class TFNormalizedSIGIRFeature extends TFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    long docLen = getDocLen(productID);
-    return Math.log(getTF(productID, term) / docLen + 1);
+  double calculateStatistics(TermStats stats) throws IOException {
+    return Math.log(stats.tfNorm() + 1);
   }
 }
 
@@ -187,12 +134,17 @@ class IDFFeature extends TermFeature implements Feature {
 
   @Override
   public float getValue(Long productID, String searchTerms) throws IOException, ParseException {
-    return sum(productID, searchTerms);
+    return sum(new QueryContext(productID, searchTerms));
+  }
+
+  @Override
+  public float getValue(QueryContext context) throws IOException {
+    return sum(context);
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    return Math.log(getIDF(term));
+  double calculateStatistics(TermStats stats) throws IOException {
+    return Math.log(stats.idf());
   }
 }
 
@@ -208,8 +160,8 @@ class IDFSIGIRFeature extends IDFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    return Math.log(Math.log(getIDF(term)));
+  double calculateStatistics(TermStats stats) throws IOException {
+    return Math.log(Math.log(stats.idf()));
   }
 }
 
@@ -225,8 +177,8 @@ class IDFSIGIR2Feature extends IDFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    return Math.log(getIDF(term) + 1);
+  double calculateStatistics(TermStats stats) throws IOException {
+    return Math.log(stats.idf() + 1);
   }
 }
 
@@ -242,10 +194,8 @@ class IDFSIGIR3Feature extends IDFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    long docLen = getDocLen(productID);
-    double tf = getTF(productID, term);
-    return Math.log(tf / docLen * Math.log(getIDF(term)) + 1);
+  double calculateStatistics(TermStats stats) throws IOException {
+    return Math.log(stats.tfNorm() * Math.log(stats.idf()) + 1);
   }
 }
 
@@ -261,11 +211,9 @@ class TermSIGIRFeature extends IDFFeature implements Feature {
   }
 
   @Override
-  double calculateStatistics(Long productID, Term term) throws IOException {
-    long docLen = getDocLen(productID);
-    double tf = getTF(productID, term);
-    double totalTF = searcher.getIndexReader().totalTermFreq(term);
-    double numDoc = searcher.getIndexReader().numDocs();
-    return Math.log(tf / docLen * totalTF / numDoc + 1);
+  double calculateStatistics(TermStats stats) throws IOException {
+    double totalTF = stats.totalTermFreq();
+    double numDoc = stats.numDocs();
+    return Math.log(stats.tfNorm() * totalTF / numDoc + 1);
   }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.edfward.homedepot;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Raw statistics of one query term against one document, shared by every {@link TermFeature} of the term's field.
+ * <p>
+ * Each statistic is read from the index on first use only, so features asking for the same value don't read the
+ * postings or norms again.
+ */
+final class TermStats {
+  private static final LongAdder POSTINGS_LOOKUPS = Metrics.counter("lookups.postings");
+
+  private static final LongAdder TERM_VECTOR_LOOKUPS = Metrics.counter("lookups.term_vector");
+
+  private final int docID;
+
+  private final Term term;
+
+  // -1 until loaded.
+  private double tf = -1;
+
+  private long docLen = -1;
+
+  // Index-wide statistics, shared with other rows through the term statistics cache.
+  private TermStatsCache.Entry indexStats;
+
+  TermStats(int docID, Term term) {
+    this.docID = docID;
+    this.term = term;
+  }
+
+  /**
+   * Statistics of `term` for several documents, reading tf in one forward pass over the term's postings.
+   *
+   * @param docIDs internal document IDs in ascending order.
+   */
+  static TermStats[] forDocs(Term term, int[] docIDs) throws IOException {
+    TermStats[] stats = new TermStats[docIDs.length];
+    List<LeafReaderContext> leaves = reader().leaves();
+    LeafReaderContext leaf = null;
+    PostingsEnum postingsEnum = null;
+    boolean hasVectors = false;
+    for (int i = 0; i < docIDs.length; ++i) {
+      int docID = docIDs[i];
+      stats[i] = new TermStats(docID, term);
+      if (leaf == null || docID >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+        FieldInfo fieldInfo = leaf.reader().getFieldInfos().fieldInfo(term.field());
+        hasVectors = fieldInfo != null && fieldInfo.hasVectors();
+        postingsEnum = hasVectors ? null : leaf.reader().postings(term, PostingsEnum.FREQS);
+        if (Metrics.ENABLED && !hasVectors) {
+          POSTINGS_LOOKUPS.increment();
+        }
+      }
+      if (hasVectors) {
+        stats[i].tf();
+        continue;
+      }
+      int leafDocID = docID - leaf.docBase;
+      stats[i].tf = 0;
+      if (postingsEnum != null) {
+        int current = postingsEnum.docID();
+        if (current < leafDocID) {
+          current = postingsEnum.advance(leafDocID);
+        }
+        if (current == leafDocID) {
+          stats[i].tf = postingsEnum.freq();
+        }
+      }
+    }
+    return stats;
+  }
+
+  private static IndexReader reader() {
+    return FeatureBase.searcher.getIndexReader();
+  }
+
+  /** Frequency of the term in the document. */
+  double tf() throws IOException {
+    if (tf < 0) {
+      tf = loadTF();
+    }
+    return tf;
+  }
+
+  private double loadTF() throws IOException {
+    List<LeafReaderContext> leaves = reader().leaves();
+    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+    int leafDocID = docID - leaf.docBase;
+
+    // Fields indexed with term vectors (see `Indexing.index`) are looked up in the document's own terms.
+    Terms termVector = leaf.reader().getTermVector(leafDocID, term.field());
+    if (Metrics.ENABLED) {
+      (termVector != null ? TERM_VECTOR_LOOKUPS : POSTINGS_LOOKUPS).increment();
+    }
+    if (termVector != null) {
+      TermsEnum termsEnum = termVector.iterator();
+      return termsEnum.seekExact(term.bytes()) ? termsEnum.totalTermFreq() : 0;
+    }
+
+    // Otherwise skip straight to the document in the postings of its segment.
+    PostingsEnum postingsEnum = leaf.reader().postings(term, PostingsEnum.FREQS);
+    if (postingsEnum != null && postingsEnum.advance(leafDocID) == leafDocID) {
+      return postingsEnum.freq();
+    }
+    return 0;
+  }
+
+  /** Number of tokens in the term's field of the document. */
+  long docLen() throws IOException {
+    if (docLen < 0) {
+      docLen = FeatureBase.docLengths.get(term.field(), docID);
+    }
+    return docLen;
+  }
+
+  /** Share of the document's tokens in the field that are the term; 0 for a field without tokens, not NaN. */
+  double tfNorm() throws IOException {
+    long length = docLen();
+    return length == 0 ? 0 : tf() / length;
+  }
+
+  private TermStatsCache.Entry indexStats() throws IOException {
+    if (indexStats == null) {
+      indexStats = FeatureBase.termStatsCache.get(term);
+    }
+    return indexStats;
+  }
+
+  /** Number of documents containing the term. */
+  int df() throws IOException {
+    return indexStats().df;
+  }
+
+  /** Number of occurrences of the term across all documents. */
+  long totalTermFreq() throws IOException {
+    return indexStats().totalTermFreq;
+  }
+
+  int numDocs() {
+    return reader().numDocs();
+  }
+
+  /** Inverse document frequency, without log, smoothed by one. */
+  double idf() throws IOException {
+    return indexStats().idf;
+  }
+}
@@ -0,0 +1,80 @@
+package com.edfward.homedepot;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Index-wide statistics of query terms of one {@link IndexReader}.
+ * <p>
+ * The query vocabulary is small and repeats across rows, so df and total term frequency are looked up in the term
+ * dictionary once per (field, term) and then served from a bounded, thread-safe cache. A new cache is needed
+ * whenever the reader changes.
+ */
+final class TermStatsCache {
+  static final int DEFAULT_MAX_TERMS = 100_000;
+
+  private static final LongAdder TERM_DICTIONARY_LOOKUPS = Metrics.counter("lookups.term_dictionary");
+
+  private final IndexReader reader;
+
+  private final Cache<Term, Entry> cache;
+
+  TermStatsCache(IndexReader reader) {
+    this(reader, DEFAULT_MAX_TERMS);
+  }
+
+  TermStatsCache(IndexReader reader, int maxTerms) {
+    this.reader = reader;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maxTerms)
+        .recordStats()
+        .build();
+  }
+
+  Entry get(Term term) throws IOException {
+    try {
+      return cache.get(term, () -> load(term));
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private Entry load(Term term) throws IOException {
+    if (Metrics.ENABLED) {
+      TERM_DICTIONARY_LOOKUPS.increment();
+    }
+    int df = reader.docFreq(term);
+    long totalTermFreq = reader.totalTermFreq(term);
+    double numDoc = reader.numDocs();
+    return new Entry(df, totalTermFreq, numDoc / (df + 1));
+  }
+
+  /** Hit and miss counts since the cache was created. */
+  CacheStats stats() {
+    return cache.stats();
+  }
+
+  static final class Entry {
+    final int df;
+
+    final long totalTermFreq;
+
+    // Inverse document frequency, without log, smoothed by one.
+    final double idf;
+
+    private Entry(int df, long totalTermFreq, double idf) {
+      this.df = df;
+      this.totalTermFreq = totalTermFreq;
+      this.idf = idf;
+    }
+  }
+}
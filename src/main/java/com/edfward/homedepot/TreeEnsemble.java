@@ -0,0 +1,171 @@
+package com.edfward.homedepot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Random forest or gradient boosted regression trees, trained in the JVM on column-major feature values.
+ * <p>
+ * Features are binned once ({@link BinnedColumns}) and trees split on bin edges. Training runs on a fork-join pool of
+ * {@link TreeEnsembleConfig#getThreads()} workers: a forest grows its trees in parallel, each from its own seed;
+ * boosting grows one tree at a time, searching the splits of large nodes feature-parallel and updating the
+ * residuals of all rows in parallel. Either way the trained model is the same for any number of threads.
+ */
+final class TreeEnsemble {
+  enum Method {
+    FOREST, BOOSTING
+  }
+
+  // Prediction is `base + scale * sum of the trees`.
+  private final float base;
+
+  private final float scale;
+
+  private final List<RegressionTree> trees;
+
+  private TreeEnsemble(float base, float scale, List<RegressionTree> trees) {
+    this.base = base;
+    this.scale = scale;
+    this.trees = Collections.unmodifiableList(new ArrayList<>(trees));
+  }
+
+  /**
+   * Train on `columns`, one array of row values per feature, to predict `labels`.
+   */
+  static TreeEnsemble train(float[][] columns, float[] labels, TreeEnsembleConfig config) {
+    ForkJoinPool pool = new ForkJoinPool(config.getThreads());
+    try {
+      long startTime = System.nanoTime();
+      BinnedColumns data = BinnedColumns.bin(columns, config.getMaxBins(), pool);
+      System.err.printf("Binned %d rows of %d features in %d ms%n",
+          data.rows(), data.features(), (System.nanoTime() - startTime) / 1_000_000);
+
+      startTime = System.nanoTime();
+      TreeEnsemble ensemble = config.getMethod() == Method.FOREST
+          ? trainForest(data, labels, config, pool)
+          : trainBoosting(data, labels, config, pool);
+      System.err.printf("Trained %d trees (%s) with %d threads in %d ms%n", ensemble.trees.size(),
+          config.getMethod(), config.getThreads(), (System.nanoTime() - startTime) / 1_000_000);
+      return ensemble;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static TreeEnsemble trainForest(
+      BinnedColumns data, float[] labels, TreeEnsembleConfig config, ForkJoinPool pool) {
+    int sampleRows = Math.max(1, (int) (data.rows() * config.getSampleFraction()));
+    List<Callable<RegressionTree>> tasks = new ArrayList<>(config.getTrees());
+    for (int t = 0; t < config.getTrees(); ++t) {
+      long seed = config.getSeed() + t;
+      tasks.add(() -> {
+        Random random = new Random(seed);
+        int[] rows = new int[sampleRows];
+        for (int i = 0; i < rows.length; ++i) {
+          rows[i] = random.nextInt(data.rows());
+        }
+        return RegressionTree.grow(data, labels, rows, config, random, null);
+      });
+    }
+    List<RegressionTree> trees = new ArrayList<>(tasks.size());
+    for (Future<RegressionTree> tree : pool.invokeAll(tasks)) {
+      trees.add(getResult(tree));
+    }
+    return new TreeEnsemble(0, 1f / trees.size(), trees);
+  }
+
+  private static TreeEnsemble trainBoosting(
+      BinnedColumns data, float[] labels, TreeEnsembleConfig config, ForkJoinPool pool) {
+    int rows = data.rows();
+    double labelSum = 0;
+    for (float label : labels) {
+      labelSum += label;
+    }
+    float base = rows == 0 ? 0 : (float) (labelSum / rows);
+    float learningRate = (float) config.getLearningRate();
+
+    // Current predictions and what they miss, the negative gradient of squared error.
+    float[] predictions = new float[rows];
+    float[] residuals = new float[rows];
+    Arrays.fill(predictions, base);
+    for (int row = 0; row < rows; ++row) {
+      residuals[row] = labels[row] - base;
+    }
+    Random random = new Random(config.getSeed());
+    int sampleRows = Math.max(1, (int) (rows * config.getSampleFraction()));
+    int[] allRows = IntStream.range(0, rows).toArray();
+
+    List<RegressionTree> trees = new ArrayList<>(config.getTrees());
+    for (int t = 0; t < config.getTrees(); ++t) {
+      // Partial shuffle, the first `sampleRows` rows are the subsample.
+      for (int i = 0; i < sampleRows && i < rows - 1; ++i) {
+        int j = i + random.nextInt(rows - i);
+        int swap = allRows[i];
+        allRows[i] = allRows[j];
+        allRows[j] = swap;
+      }
+      int[] sample = Arrays.copyOf(allRows, sampleRows);
+      RegressionTree tree = RegressionTree.grow(data, residuals, sample, config, random, pool);
+      trees.add(tree);
+
+      // Predictions and residuals of each row are updated together, in parallel.
+      getResult(pool.submit(() -> IntStream.range(0, rows).parallel().forEach(row -> {
+        predictions[row] += learningRate * tree.predict(data, row);
+        residuals[row] = labels[row] - predictions[row];
+      })));
+      if ((t + 1) % 50 == 0) {
+        System.err.printf("Boosting round %d, training RMSE %.4f%n", t + 1, rmse(labels, predictions));
+      }
+    }
+    return new TreeEnsemble(base, learningRate, trees);
+  }
+
+  private static <T> T getResult(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while training trees", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  static double rmse(float[] labels, float[] predictions) {
+    double squares = 0;
+    for (int i = 0; i < labels.length; ++i) {
+      double diff = labels[i] - predictions[i];
+      squares += diff * diff;
+    }
+    return Math.sqrt(squares / labels.length);
+  }
+
+  /** Prediction for a row of column-major raw values, with the features in training order. */
+  float predict(float[][] columns, int row) {
+    double sum = 0;
+    for (RegressionTree tree : trees) {
+      sum += tree.predict(columns, row);
+    }
+    return (float) (base + scale * sum);
+  }
+
+  /** Predictions for every row of `columns`. */
+  float[] predict(float[][] columns) {
+    int rows = columns.length == 0 ? 0 : columns[0].length;
+    float[] predictions = new float[rows];
+    IntStream.range(0, rows).parallel().forEach(row -> predictions[row] = predict(columns, row));
+    return predictions;
+  }
+
+  int size() {
+    return trees.size();
+  }
+}
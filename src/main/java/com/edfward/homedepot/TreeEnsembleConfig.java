@@ -0,0 +1,168 @@
+package com.edfward.homedepot;
+
+/**
+ * Settings of {@link TreeEnsemble} training. Defaults depend on the method; setters return this config.
+ */
+public class TreeEnsembleConfig {
+  private final TreeEnsemble.Method method;
+
+  private int trees;
+
+  private int maxDepth;
+
+  private int minLeafRows;
+
+  private double featureFraction;
+
+  private double sampleFraction;
+
+  private double learningRate = 0.1;
+
+  private int maxBins = BinnedColumns.MAX_BINS;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private long seed = 123;
+
+  public TreeEnsembleConfig(TreeEnsemble.Method method) {
+    this.method = method;
+    switch (method) {
+      case FOREST:
+        trees = 200;
+        maxDepth = 16;
+        minLeafRows = 5;
+        featureFraction = 1.0 / 3;
+        sampleFraction = 1.0;
+        break;
+      case BOOSTING:
+        trees = 300;
+        maxDepth = 6;
+        minLeafRows = 20;
+        featureFraction = 1.0;
+        sampleFraction = 0.8;
+        break;
+      default:
+        throw new AssertionError(method);
+    }
+  }
+
+  public TreeEnsemble.Method getMethod() {
+    return method;
+  }
+
+  public int getTrees() {
+    return trees;
+  }
+
+  /** Trees of a forest, or boosting rounds. */
+  public TreeEnsembleConfig setTrees(int trees) {
+    if (trees < 1) {
+      throw new IllegalArgumentException("Need at least one tree, got " + trees);
+    }
+    this.trees = trees;
+    return this;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  public TreeEnsembleConfig setMaxDepth(int maxDepth) {
+    if (maxDepth < 0) {
+      throw new IllegalArgumentException("Max depth must not be negative, got " + maxDepth);
+    }
+    this.maxDepth = maxDepth;
+    return this;
+  }
+
+  public int getMinLeafRows() {
+    return minLeafRows;
+  }
+
+  /** Rows a leaf must keep, so no split leaves fewer on either side. */
+  public TreeEnsembleConfig setMinLeafRows(int minLeafRows) {
+    if (minLeafRows < 1) {
+      throw new IllegalArgumentException("Leaves need at least one row, got " + minLeafRows);
+    }
+    this.minLeafRows = minLeafRows;
+    return this;
+  }
+
+  public double getFeatureFraction() {
+    return featureFraction;
+  }
+
+  /** Share of the features drawn at random as split candidates of each node. */
+  public TreeEnsembleConfig setFeatureFraction(double featureFraction) {
+    if (featureFraction <= 0 || featureFraction > 1) {
+      throw new IllegalArgumentException("Feature fraction must be in (0, 1], got " + featureFraction);
+    }
+    this.featureFraction = featureFraction;
+    return this;
+  }
+
+  public double getSampleFraction() {
+    return sampleFraction;
+  }
+
+  /**
+   * Rows each tree is grown on, as a share of the training rows: a bootstrap sample (with replacement) for forests,
+   * a subsample (without) for boosting.
+   */
+  public TreeEnsembleConfig setSampleFraction(double sampleFraction) {
+    if (sampleFraction <= 0 || sampleFraction > 1) {
+      throw new IllegalArgumentException("Sample fraction must be in (0, 1], got " + sampleFraction);
+    }
+    this.sampleFraction = sampleFraction;
+    return this;
+  }
+
+  public double getLearningRate() {
+    return learningRate;
+  }
+
+  /** Shrinkage of each boosting round; unused by forests. */
+  public TreeEnsembleConfig setLearningRate(double learningRate) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be positive, got " + learningRate);
+    }
+    this.learningRate = learningRate;
+    return this;
+  }
+
+  public int getMaxBins() {
+    return maxBins;
+  }
+
+  /** Histogram bins per feature; split thresholds are bin edges. */
+  public TreeEnsembleConfig setMaxBins(int maxBins) {
+    if (maxBins < 2 || maxBins > BinnedColumns.MAX_BINS) {
+      throw new IllegalArgumentException("Bins must be in [2, " + BinnedColumns.MAX_BINS + "], got " + maxBins);
+    }
+    this.maxBins = maxBins;
+    return this;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /** Parallelism of the fork-join pool training runs on. */
+  public TreeEnsembleConfig setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread, got " + threads);
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  /** Seed of the row samples and feature draws; results don't depend on the number of threads. */
+  public TreeEnsembleConfig setSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+}
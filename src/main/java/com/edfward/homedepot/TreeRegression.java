@@ -0,0 +1,66 @@
+package com.edfward.homedepot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link Regression} with a random forest (the default) or gradient boosted trees instead of a network, trained in
+ * the JVM on the same feature stores. Run with `forest` or `boosting` as the argument.
+ */
+public class TreeRegression {
+  // Share of the training rows fitted on, the rest are held out to report RMSE.
+  private static final double TRAINING_SHARE = 0.9;
+
+  private static Logger log = LoggerFactory.getLogger(TreeRegression.class);
+
+  public static void main(String[] args) throws IOException {
+    TreeEnsemble.Method method;
+    try {
+      method = TreeEnsemble.Method.valueOf(args.length > 0 ? args[0].toUpperCase(Locale.ROOT) : "FOREST");
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown method '" + args[0] + "', expected forest or boosting");
+    }
+    TreeEnsembleConfig config = new TreeEnsembleConfig(method);
+
+    // Feature stores written by `FeatureExtraction`, with the inputs of `Regression`.
+    FeatureStore trainStore = FeatureStore.open(Paths.get("data/train-feature"));
+    FeatureStore testStore = FeatureStore.open(Paths.get("data/test-feature"));
+    List<String> featureNames = Regression.featureNames(trainStore);
+    int trainingRows = (int) (trainStore.rows() * TRAINING_SHARE);
+    log.info(trainingRows + " training rows, " + (trainStore.rows() - trainingRows) + " held out, "
+        + testStore.rows() + " test rows, " + featureNames.size() + " features");
+
+    TreeEnsemble model = TreeEnsemble.train(
+        columns(trainStore, featureNames, 0, trainingRows),
+        trainStore.read(Constant.CSV_RELEVANCE, 0, trainingRows),
+        config);
+
+    float[] heldOutLabels = trainStore.read(Constant.CSV_RELEVANCE, trainingRows, trainStore.rows());
+    float[] heldOut = model.predict(columns(trainStore, featureNames, trainingRows, trainStore.rows()));
+    for (int i = 0; i < heldOut.length; ++i) {
+      heldOut[i] = RelevanceModel.clip(heldOut[i]);
+    }
+    log.info("RMSE: " + TreeEnsemble.rmse(heldOutLabels, heldOut));
+
+    float[] predictions = model.predict(columns(testStore, featureNames, 0, testStore.rows()));
+    try (PredictionWriter writer = new PredictionWriter("data/predict.txt")) {
+      for (float prediction : predictions) {
+        writer.write(prediction);
+      }
+    }
+  }
+
+  // Column-major copy of rows [from, to) of the features.
+  private static float[][] columns(FeatureStore store, List<String> featureNames, int from, int to) {
+    float[][] columns = new float[featureNames.size()][];
+    for (int i = 0; i < columns.length; ++i) {
+      columns[i] = store.read(featureNames.get(i), from, to);
+    }
+    return columns;
+  }
+}